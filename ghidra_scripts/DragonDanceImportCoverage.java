@@ -0,0 +1,241 @@
+//Imports coverage files into the current program and bakes them into the
+//listing as background colors and/or bookmarks. Made for analyzeHeadless:
+//
+//  analyzeHeadless <project dir> <project name> -process <binary>
+//      -postScript DragonDanceImportCoverage.java <trace file|dir|glob> [colors|bookmarks|both] [module=<name>]
+//
+//All of the matching traces are summed into a single coverage, so the colors
+//show the total hit counts. The changes are applied in one transaction and the program is saved.
+//@category DragonDance
+
+import java.awt.Color;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import dragondance.datasource.CoverageData;
+import dragondance.eng.ColorRunList;
+import dragondance.eng.GhidraProgramView;
+import dragondance.eng.InstructionHitTable;
+import dragondance.eng.InstructionInfo;
+import dragondance.eng.Painter;
+import dragondance.eng.session.CoverageAggregator;
+import dragondance.eng.session.Session;
+import ghidra.app.script.GhidraScript;
+import ghidra.framework.model.DomainFile;
+import ghidra.program.model.address.AddressSet;
+import ghidra.program.model.util.IntRangeMap;
+
+public class DragonDanceImportCoverage extends GhidraScript {
+	
+	//the range map where the colorizing service keeps the listing background colors
+	private static final String COLOR_PROPERTY_NAME = "LISTING_COLOR";
+	private static final String BOOKMARK_CATEGORY = "DragonDance";
+	
+	private boolean applyColors=true;
+	private boolean applyBookmarks=false;
+	private String mainModule=null;
+	
+	private List<String> findTraces(String traces) throws Exception {
+		Path path = Paths.get(traces).toAbsolutePath();
+		
+		if (Files.isRegularFile(path))
+			return Collections.singletonList(path.toString());
+		
+		if (Files.isDirectory(path))
+			return CoverageAggregator.listCoverageFiles(path, "*");
+		
+		return CoverageAggregator.listCoverageFiles(path.getParent(), path.getFileName().toString());
+	}
+	
+	private boolean parseArgs(String[] args) {
+		for (int i=1;i<args.length;i++) {
+			switch (args[i].toLowerCase()) {
+			case "colors":
+				this.applyColors = true;
+				this.applyBookmarks = false;
+				break;
+			case "bookmarks":
+				this.applyColors = false;
+				this.applyBookmarks = true;
+				break;
+			case "both":
+				this.applyColors = true;
+				this.applyBookmarks = true;
+				break;
+			default:
+				if (args[i].startsWith("module=")) {
+					this.mainModule = args[i].substring(7);
+					break;
+				}
+				
+				printerr("unknown argument: " + args[i]);
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private IntRangeMap getColorMap() throws Exception {
+		IntRangeMap map = currentProgram.getIntRangeMap(COLOR_PROPERTY_NAME);
+		
+		if (map == null)
+			map = currentProgram.createIntRangeMap(COLOR_PROPERTY_NAME);
+		
+		return map;
+	}
+	
+	private int paintColors(CoverageData coverage, InstructionHitTable table) throws Exception {
+		ColorRunList runs = new ColorRunList();
+		Painter painter = new Painter();
+		IntRangeMap map = getColorMap();
+		Color color;
+		
+		painter.setReferenceCoverage(coverage);
+		
+		for (int i=0;i<table.size();i++) {
+			color = painter.getColor(new InstructionInfo(null, table.getAddr(i), table.getSize(i), table.getDensity(i)));
+			runs.add(table.getAddr(i), table.getSize(i), color);
+		}
+		
+		for (int i=0;i<runs.size();i++) {
+			monitor.checkCanceled();
+			
+			map.setValue(new AddressSet(toAddr(runs.getStart(i)), toAddr(runs.getEnd(i) - 1)), 
+					runs.getColor(i).getRGB());
+		}
+		
+		return runs.size();
+	}
+	
+	/*
+	 * Puts a bookmark at the beginning of each contiguously covered block
+	 */
+	private int createBookmarks(InstructionHitTable table) throws Exception {
+		int count=0,instCount,maxDensity;
+		long start,end;
+		int i=0;
+		
+		while (i < table.size()) {
+			monitor.checkCanceled();
+			
+			start = table.getAddr(i);
+			end = start;
+			instCount = 0;
+			maxDensity = 0;
+			
+			while (i < table.size() && table.getAddr(i) == end) {
+				end += table.getSize(i);
+				maxDensity = Math.max(maxDensity, table.getDensity(i));
+				instCount++;
+				i++;
+			}
+			
+			createBookmark(toAddr(start), BOOKMARK_CATEGORY, 
+					String.format("%d instructions covered, max hits %d", instCount, maxDensity));
+			
+			count++;
+		}
+		
+		return count;
+	}
+	
+	private void saveProgram() throws Exception {
+		DomainFile file = currentProgram.getDomainFile();
+		
+		if (!file.canSave()) {
+			println("program can not be saved. changes are left to the caller");
+			return;
+		}
+		
+		//the transaction of the script must be closed before saving
+		end(true);
+		
+		file.save(monitor);
+	}
+	
+	@Override
+	protected void run() throws Exception {
+		String[] args = getScriptArgs();
+		GhidraProgramView program;
+		CoverageAggregator aggregator;
+		InstructionHitTable table;
+		CoverageData coverage;
+		Session session;
+		List<String> files;
+		boolean committed=false;
+		int transId;
+		
+		if (currentProgram == null) {
+			printerr("there is no program");
+			return;
+		}
+		
+		if (args == null || args.length == 0) {
+			if (isRunningHeadless()) {
+				printerr("usage: DragonDanceImportCoverage.java <trace file|dir|glob> [colors|bookmarks|both] [module=<name>]");
+				return;
+			}
+			
+			File file = askFile("Select coverage data", "import");
+			args = new String[] { file.getAbsolutePath() };
+		}
+		
+		if (!parseArgs(args))
+			return;
+		
+		files = findTraces(args[0]);
+		
+		if (files.isEmpty()) {
+			printerr("no coverage file found in " + args[0]);
+			return;
+		}
+		
+		program = new GhidraProgramView(currentProgram);
+		
+		if (this.mainModule == null)
+			this.mainModule = program.getProgramName();
+		
+		session = Session.createNew("headless", this.mainModule, program);
+		
+		aggregator = new CoverageAggregator(session, CoverageAggregator.OP_SUM, 
+				Runtime.getRuntime().availableProcessors());
+		
+		coverage = aggregator.aggregate(files);
+		
+		if (coverage == null) {
+			printerr("none of the coverage files could be loaded");
+			session.close();
+			return;
+		}
+		
+		println(String.format("%d coverage files imported, %d failed", 
+				aggregator.getLoadedCount(), aggregator.getFailedCount()));
+		
+		table = coverage.getInstructionTable();
+		
+		transId = currentProgram.startTransaction("DragonDance coverage");
+		
+		try {
+			if (this.applyColors)
+				println(String.format("%d color runs painted", paintColors(coverage, table)));
+			
+			if (this.applyBookmarks)
+				println(String.format("%d bookmarks created", createBookmarks(table)));
+			
+			committed = true;
+		}
+		finally {
+			currentProgram.endTransaction(transId, committed);
+			
+			coverage.closeNothrow();
+			session.close();
+		}
+		
+		saveProgram();
+	}
+}
@@ -0,0 +1,64 @@
+package dragondance.benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import dragondance.Globals;
+import dragondance.Log;
+import dragondance.datasource.CoverageData;
+import dragondance.datasource.CoverageDataSource;
+import dragondance.datasource.DragonDanceDataSource;
+import dragondance.datasource.DynamorioDataSource;
+import dragondance.datasource.PintoolDataSource;
+import dragondance.eng.InstructionTableView;
+import dragondance.eng.ProgramView;
+import dragondance.eng.session.Session;
+
+/*
+ * Runs the engine off-Ghidra. The session is built against an in memory
+ * program view that assumes 4 byte instructions at a fixed image base.
+ */
+public class BenchmarkEnvironment {
+	public static final long IMAGE_BASE = 0x10000000;
+	
+	private static Session session = null;
+	
+	public static synchronized Session setUp() {
+		ProgramView program;
+		
+		Globals.EnableTraceCache = false;
+		
+		Log.setEnable(false);
+		
+		if (session == null) {
+			program = new InstructionTableView(TraceGenerator.MAIN_MODULE, 
+					"00000000000000000000000000000000", IMAGE_BASE, 4);
+			
+			session = Session.createNew("benchmark", TraceGenerator.MAIN_MODULE, program);
+		}
+		
+		return session;
+	}
+	
+	public static CoverageDataSource openSource(String format, File trace) throws FileNotFoundException {
+		
+		if (format.equals(TraceGenerator.FORMAT_DDPH))
+			return new PintoolDataSource(trace.getPath(), TraceGenerator.MAIN_MODULE);
+		
+		if (format.equals(TraceGenerator.FORMAT_DDCOV))
+			return new DragonDanceDataSource(trace.getPath(), TraceGenerator.MAIN_MODULE);
+		
+		return new DynamorioDataSource(trace.getPath(), TraceGenerator.MAIN_MODULE);
+	}
+	
+	public static CoverageData buildCoverage(String format, File trace) throws Exception {
+		CoverageData coverage = new CoverageData(openSource(format, trace), setUp());
+		
+		if (!coverage.getSource().process() || !coverage.build()) {
+			coverage.closeNothrow();
+			throw new IllegalStateException(trace + " could not be built");
+		}
+		
+		return coverage;
+	}
+}
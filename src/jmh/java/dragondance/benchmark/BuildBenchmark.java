@@ -0,0 +1,78 @@
+package dragondance.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dragondance.datasource.CoverageData;
+
+/*
+ * Range building and merging of the parsed entries (CoverageData.build)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+	
+	@Param({TraceGenerator.FORMAT_DRCOV, TraceGenerator.FORMAT_DDPH})
+	public String format;
+	
+	@Param({"1000000"})
+	public int entryCount;
+	
+	@Param({"8"})
+	public int moduleCount;
+	
+	//start range of the main module blocks in instructions. smaller span, more merging
+	@Param({"65536", "4194304"})
+	public int span;
+	
+	private File trace;
+	private CoverageData coverage;
+	
+	@Setup(Level.Trial)
+	public void createTrace() throws Exception {
+		BenchmarkEnvironment.setUp();
+		
+		this.trace = TraceGenerator.create(this.format, this.entryCount, this.moduleCount, this.span, 1);
+	}
+	
+	@TearDown(Level.Trial)
+	public void deleteTrace() {
+		this.trace.delete();
+	}
+	
+	//build consumes its source. so each build gets a freshly processed one
+	@Setup(Level.Invocation)
+	public void processTrace() throws Exception {
+		this.coverage = new CoverageData(BenchmarkEnvironment.openSource(this.format, this.trace), BenchmarkEnvironment.setUp());
+		this.coverage.getSource().process();
+	}
+	
+	@TearDown(Level.Invocation)
+	public void closeCoverage() {
+		this.coverage.closeNothrow();
+	}
+	
+	@Benchmark
+	public int build() throws Exception {
+		this.coverage.build();
+		return this.coverage.getRangeCount();
+	}
+}
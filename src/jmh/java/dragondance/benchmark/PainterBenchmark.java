@@ -0,0 +1,83 @@
+package dragondance.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dragondance.datasource.CoverageData;
+import dragondance.eng.ColorRunList;
+import dragondance.eng.InstructionHitTable;
+import dragondance.eng.InstructionInfo;
+import dragondance.eng.Painter;
+
+/*
+ * Heat color computation of the covered instructions and coalescing them
+ * into the color runs that are handed to the colorizing service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PainterBenchmark {
+	
+	private CoverageData coverage;
+	private InstructionInfo[] instructions;
+	private Painter painter;
+	
+	@Setup(Level.Trial)
+	public void buildCoverage() throws Exception {
+		InstructionHitTable table;
+		File trace;
+		
+		trace = TraceGenerator.create(TraceGenerator.FORMAT_DDPH, 1000000, 4, 1 << 16, 1);
+		
+		this.coverage = BenchmarkEnvironment.buildCoverage(TraceGenerator.FORMAT_DDPH, trace);
+		
+		trace.delete();
+		
+		table = this.coverage.getInstructionTable();
+		this.instructions = new InstructionInfo[table.size()];
+		
+		for (int i=0;i<table.size();i++)
+			this.instructions[i] = new InstructionInfo(null, table.getAddr(i), table.getSize(i), table.getDensity(i));
+		
+		this.painter = new Painter();
+		this.painter.setReferenceCoverage(this.coverage);
+	}
+	
+	@TearDown(Level.Trial)
+	public void closeCoverage() {
+		this.coverage.closeNothrow();
+	}
+	
+	@Benchmark
+	public void heatColors(Blackhole bh) {
+		for (InstructionInfo inst : this.instructions)
+			bh.consume(this.painter.getColor(inst));
+	}
+	
+	@Benchmark
+	public int colorRuns() {
+		ColorRunList runs = new ColorRunList();
+		
+		for (InstructionInfo inst : this.instructions)
+			runs.add(inst.getAddr(), inst.getSize(), this.painter.getColor(inst));
+		
+		return runs.size();
+	}
+}
@@ -0,0 +1,64 @@
+package dragondance.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dragondance.datasource.CoverageDataSource;
+
+/*
+ * Parsing of the trace files (CoverageDataSource.process). Entries of the
+ * main module are kept, the rest is filtered out while decoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessBenchmark {
+	
+	@Param({TraceGenerator.FORMAT_DRCOV, TraceGenerator.FORMAT_DDPH, TraceGenerator.FORMAT_DDCOV})
+	public String format;
+	
+	@Param({"1000000"})
+	public int entryCount;
+	
+	@Param({"8"})
+	public int moduleCount;
+	
+	private File trace;
+	
+	@Setup(Level.Trial)
+	public void createTrace() throws Exception {
+		BenchmarkEnvironment.setUp();
+		
+		this.trace = TraceGenerator.create(this.format, this.entryCount, this.moduleCount, 1 << 22, 1);
+	}
+	
+	@TearDown(Level.Trial)
+	public void deleteTrace() {
+		this.trace.delete();
+	}
+	
+	@Benchmark
+	public int process() throws Exception {
+		try (CoverageDataSource source = BenchmarkEnvironment.openSource(this.format, this.trace)) {
+			source.process();
+			return source.getReadedEntryCount();
+		}
+	}
+}
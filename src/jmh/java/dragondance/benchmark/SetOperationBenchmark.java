@@ -0,0 +1,91 @@
+package dragondance.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dragondance.datasource.CoverageData;
+
+/*
+ * Coverage set operations over the built coverages of overlapping traces
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SetOperationBenchmark {
+	
+	@Param({"2", "8"})
+	public int coverageCount;
+	
+	@Param({"500000"})
+	public int entryCount;
+	
+	private CoverageData[] coverages;
+	
+	@Setup(Level.Trial)
+	public void buildCoverages() throws Exception {
+		File trace;
+		
+		BenchmarkEnvironment.setUp();
+		
+		this.coverages = new CoverageData[this.coverageCount];
+		
+		for (int i=0;i<this.coverageCount;i++) {
+			trace = TraceGenerator.create(TraceGenerator.FORMAT_DRCOV, this.entryCount, 4, 1 << 20, i + 1);
+			
+			this.coverages[i] = BenchmarkEnvironment.buildCoverage(TraceGenerator.FORMAT_DRCOV, trace);
+			
+			trace.delete();
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void closeCoverages() {
+		for (CoverageData coverage : this.coverages)
+			coverage.closeNothrow();
+	}
+	
+	private static int release(CoverageData result) {
+		int rangeCount = result.getRangeCount();
+		
+		result.closeNothrow();
+		
+		return rangeCount;
+	}
+	
+	@Benchmark
+	public int intersect() {
+		return release(CoverageData.intersect(this.coverages));
+	}
+	
+	@Benchmark
+	public int difference() {
+		return release(CoverageData.difference(this.coverages));
+	}
+	
+	@Benchmark
+	public int distinct() {
+		return release(CoverageData.distinct(this.coverages));
+	}
+	
+	@Benchmark
+	public int sum() {
+		return release(CoverageData.sum(this.coverages));
+	}
+}
@@ -0,0 +1,121 @@
+package dragondance.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import dragondance.datasource.DragonDanceDataSource;
+
+/*
+ * Writes synthetic drcov and ddph traces (ddcov ones are converted from drcov).
+ * Entries are spread over the modules and the main module gets the half of them.
+ * Block offsets and sizes are multiples of 4, the instruction size of the benchmark program view.
+ */
+public class TraceGenerator {
+	public static final String MAIN_MODULE = "bench.exe";
+	public static final String FORMAT_DRCOV = "drcov";
+	public static final String FORMAT_DDPH = "ddph";
+	public static final String FORMAT_DDCOV = "ddcov";
+	
+	private static final long MODULE_BASE = 0x10000000L;
+	private static final long MODULE_SIZE = 0x10000000L;
+	
+	private static String getModulePath(int id) {
+		if (id == 0)
+			return "/bench/" + MAIN_MODULE;
+		
+		return String.format("/bench/lib%d.so", id);
+	}
+	
+	private static String getModuleTable(String format, int moduleCount) {
+		StringBuilder sb = new StringBuilder();
+		long base;
+		
+		for (int i=0;i<moduleCount;i++) {
+			base = MODULE_BASE + i * MODULE_SIZE;
+			
+			if (format.equals(FORMAT_DRCOV))
+				sb.append(String.format(" %d, 0x%x, 0x%x, 0x0, 0x0, 0x0, %s\n", i, base, base + MODULE_SIZE, getModulePath(i)));
+			else
+				sb.append(String.format("%d, 0x%x, 0x%x, %s\n", i, base, base + MODULE_SIZE, getModulePath(i)));
+		}
+		
+		return sb.toString();
+	}
+	
+	private static String getHeader(String format, int moduleCount, int entryCount) {
+		
+		if (format.equals(FORMAT_DRCOV)) {
+			return "DRCOV VERSION: 2\n" +
+					"DRCOV FLAVOR: drcov\n" +
+					String.format("Module Table: version 2, count %d\n", moduleCount) +
+					"Columns: id, base, end, entry, checksum, timestamp, path\n" +
+					getModuleTable(format, moduleCount) +
+					String.format("BB Table: %d bbs\n", entryCount);
+		}
+		
+		return "DDPH-PINTOOL\n" +
+				String.format("EntryCount: %d, ModuleCount: %d\n", entryCount, moduleCount) +
+				"MODULE_TABLE\n" +
+				getModuleTable(format, moduleCount) +
+				"ENTRY_TABLE\n";
+	}
+	
+	/*
+	 * Creates a temporary trace of entryCount blocks. Blocks of the main module
+	 * start within the first span instructions of the module, so a smaller span
+	 * makes more overlapping blocks to be merged.
+	 */
+	public static File create(String format, int entryCount, int moduleCount, int span, long seed) throws IOException {
+		final boolean extended = format.equals(FORMAT_DDPH);
+		final int entrySize = extended ? 12 : 8;
+		Random random = new Random(seed);
+		ByteBuffer entry;
+		File trace;
+		int mid,blockSize;
+		
+		if (format.equals(FORMAT_DDCOV)) {
+			File source = create(FORMAT_DRCOV, entryCount, moduleCount, span, seed);
+			
+			trace = File.createTempFile("ddbench", "." + format);
+			trace.deleteOnExit();
+			
+			DragonDanceDataSource.convert(source.getPath(), trace.getPath(), true);
+			source.delete();
+			
+			return trace;
+		}
+		
+		trace = File.createTempFile("ddbench", "." + format);
+		trace.deleteOnExit();
+		
+		entry = ByteBuffer.allocate(entrySize).order(ByteOrder.LITTLE_ENDIAN);
+		
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(trace), 1 << 20)) {
+			out.write(getHeader(format, moduleCount, entryCount).getBytes(StandardCharsets.US_ASCII));
+			
+			for (int i=0;i<entryCount;i++) {
+				mid = random.nextBoolean() ? 0 : random.nextInt(moduleCount);
+				blockSize = 1 + random.nextInt(8);
+				
+				entry.clear();
+				entry.putInt(random.nextInt(span) * 4);
+				entry.putShort((short)(blockSize * 4));
+				entry.putShort((short)mid);
+				
+				if (extended)
+					entry.putInt(blockSize);
+				
+				out.write(entry.array());
+			}
+		}
+		
+		return trace;
+	}
+}
@@ -0,0 +1,345 @@
+package dragondance;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import dragondance.components.GuiAffectedOpInterface;
+import dragondance.datasource.CommonDatabaseDataSource;
+import dragondance.datasource.CoverageData;
+import dragondance.eng.InstructionHitTable;
+import dragondance.eng.InstructionTableView;
+import dragondance.eng.session.CoverageAggregator;
+import dragondance.eng.session.Session;
+import dragondance.exceptions.InvalidInstructionAddress;
+import dragondance.exceptions.OperationAbortedException;
+import dragondance.scripting.DragonDanceScripting;
+
+/*
+ * Command line entry point. Aggregates a directory of coverage files
+ * against an instruction table that is exported from ghidra, without a running tool.
+ * Traces are streamed through a CoverageAggregator on all cores, or a dragondance
+ * script is run over them. The result is written as a session database and
+ * the summary statistics are printed.
+ */
+public class DragonDanceBatch {
+	
+	private static final int EXIT_SUCCESS = 0;
+	private static final int EXIT_FAILURE = 1;
+	private static final int EXIT_USAGE = 2;
+	
+	private String tableFile=null;
+	private String traces=null;
+	private String scriptFile=null;
+	private String outFile=null;
+	private String statsFile=null;
+	private String mainModule=null;
+	private String operationName="sum";
+	private int threadCount=Runtime.getRuntime().availableProcessors();
+	
+	/*
+	 * Scripting operations that affect the gui in the plugin. Imported coverages
+	 * are built into the batch session, the coverage passed to show() is the result.
+	 */
+	private static class BatchOpInterface implements GuiAffectedOpInterface {
+		private Session session;
+		private CoverageData shown=null;
+		
+		BatchOpInterface(Session session) {
+			this.session = session;
+		}
+		
+		@Override
+		public CoverageData loadCoverage(String coverageDataFile) throws FileNotFoundException {
+			CoverageData coverage = this.session.addCoverageData(coverageDataFile);
+			
+			if (coverage == null)
+				return null;
+			
+			try {
+				if (coverage.getSource().process() && coverage.build())
+					return coverage;
+			} catch (InvalidInstructionAddress | OperationAbortedException e) {
+				Log.println("%s could not be built (%s)", coverageDataFile, e.getMessage());
+			}
+			
+			this.session.removeCoverageData(coverage.getSourceId());
+			
+			return null;
+		}
+		
+		@Override
+		public boolean removeCoverage(int id) {
+			return this.session.removeCoverageData(id);
+		}
+		
+		@Override
+		public boolean visualizeCoverage(CoverageData coverage) {
+			this.shown = coverage;
+			return true;
+		}
+		
+		@Override
+		public boolean goTo(long offset) {
+			return false;
+		}
+	}
+	
+	private static void usage() {
+		System.err.println("usage: DragonDanceBatch -table <instruction table> -traces <dir|glob> [options]");
+		System.err.println("  -op <sum|intersect|diff|distinct>  set operation over the traces (default: sum)");
+		System.err.println("  -script <file>       runs the dragondance script instead of -op. traces directory");
+		System.err.println("                       is its working directory, the coverage passed to show() is the result");
+		System.err.println("  -module <name>       main module name in the traces (default: program name in the table)");
+		System.err.println("  -out <file>          writes the result as a session database");
+		System.err.println("  -stats <file>        writes the summary statistics into the file instead of stdout");
+		System.err.println("  -threads <n>         number of the traces loaded at the same time (default: cpu count)");
+		System.err.println("  -nocache             does not use the trace cache");
+		System.err.println("  -verbose             logs the progress and the failed traces to stdout");
+	}
+	
+	private boolean parseArgs(String[] args) {
+		String opt,value;
+		
+		for (int i=0;i<args.length;i++) {
+			opt = args[i];
+			
+			if (opt.equals("-nocache")) {
+				Globals.EnableTraceCache = false;
+				continue;
+			}
+			
+			if (opt.equals("-verbose")) {
+				Log.setEnable(true);
+				Log.enableStdoutLogging(true);
+				continue;
+			}
+			
+			if (i + 1 == args.length) {
+				System.err.println(opt + " needs a value");
+				return false;
+			}
+			
+			value = args[++i];
+			
+			switch (opt) {
+			case "-table":
+				this.tableFile = value;
+				break;
+			case "-traces":
+				this.traces = value;
+				break;
+			case "-script":
+				this.scriptFile = value;
+				break;
+			case "-out":
+				this.outFile = value;
+				break;
+			case "-stats":
+				this.statsFile = value;
+				break;
+			case "-module":
+				this.mainModule = value;
+				break;
+			case "-op":
+				this.operationName = value;
+				break;
+			case "-threads":
+				try {
+					this.threadCount = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					System.err.println("invalid thread count: " + value);
+					return false;
+				}
+				break;
+			default:
+				System.err.println("unknown option: " + opt);
+				return false;
+			}
+		}
+		
+		if (this.tableFile == null) {
+			System.err.println("-table is required");
+			return false;
+		}
+		
+		if (this.traces == null && this.scriptFile == null) {
+			System.err.println("-traces or -script is required");
+			return false;
+		}
+		
+		if (CoverageAggregator.getOperation(this.operationName) == -1) {
+			System.err.println("unknown operation: " + this.operationName);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Returns the {dir, glob} pair of the traces argument
+	 */
+	private Path[] getTracesLocation() {
+		Path path = Paths.get(this.traces).toAbsolutePath();
+		
+		if (Files.isDirectory(path))
+			return new Path[] {path, Paths.get("*")};
+		
+		return new Path[] {path.getParent(), path.getFileName()};
+	}
+	
+	private CoverageData runScript(Session session) throws IOException {
+		BatchOpInterface gai = new BatchOpInterface(session);
+		String script;
+		
+		script = new String(Files.readAllBytes(Paths.get(this.scriptFile)), StandardCharsets.UTF_8);
+		
+		if (this.traces != null)
+			DragonDanceScripting.setWorkingDirectory(getTracesLocation()[0].toString());
+		else
+			DragonDanceScripting.setWorkingDirectory(new File(this.scriptFile).getAbsoluteFile().getParent());
+		
+		DragonDanceScripting.setGuiAffectedInterface(gai);
+		
+		if (!DragonDanceScripting.execute(script))
+			return null;
+		
+		if (gai.shown == null)
+			System.err.println("the script did not show() a coverage");
+		
+		return gai.shown;
+	}
+	
+	private void writeStats(PrintStream out, InstructionTableView program, CoverageData result, 
+			CoverageAggregator aggregator, long elapsed) {
+		InstructionHitTable table = result.getInstructionTable();
+		long coveredBytes=0;
+		int maxDensity=0;
+		
+		for (int i=0;i<table.size();i++) {
+			coveredBytes += table.getSize(i);
+			maxDensity = Math.max(maxDensity, table.getDensity(i));
+		}
+		
+		out.printf("program=%s%n", program.getProgramName());
+		out.printf("md5=%s%n", program.getExecutableMD5());
+		
+		if (aggregator != null) {
+			out.printf("operation=%s%n", this.operationName);
+			out.printf("traces_loaded=%d%n", aggregator.getLoadedCount());
+			out.printf("traces_failed=%d%n", aggregator.getFailedCount());
+			out.printf("entries=%d%n", aggregator.getEntryCount());
+		}
+		else
+			out.printf("script=%s%n", this.scriptFile);
+		
+		out.printf("ranges=%d%n", result.getRangeCount());
+		out.printf("instructions=%d%n", table.size());
+		out.printf("covered_bytes=%d%n", coveredBytes);
+		out.printf("max_density=%d%n", maxDensity);
+		
+		if (program.getInstructionCount() > 0) {
+			out.printf("program_instructions=%d%n", program.getInstructionCount());
+			out.printf("instruction_coverage=%.2f%n", (table.size() * 100.0) / program.getInstructionCount());
+		}
+		
+		out.printf("elapsed_ms=%d%n", elapsed);
+	}
+	
+	private int run() throws Exception {
+		InstructionTableView program;
+		CoverageAggregator aggregator=null;
+		CoverageData result;
+		Session session;
+		List<String> files;
+		Path[] location;
+		String origin;
+		long beginTime;
+		
+		beginTime = System.nanoTime();
+		
+		program = InstructionTableView.load(this.tableFile);
+		
+		if (this.mainModule == null)
+			this.mainModule = program.getProgramName();
+		
+		session = Session.createNew("batch", this.mainModule, program);
+		
+		Globals.MaxConcurrentImports = Math.max(1, this.threadCount);
+		
+		if (this.scriptFile != null) {
+			result = runScript(session);
+		}
+		else {
+			location = getTracesLocation();
+			files = CoverageAggregator.listCoverageFiles(location[0], location[1].toString());
+			
+			if (files.isEmpty()) {
+				System.err.println("no coverage file found in " + this.traces);
+				return EXIT_FAILURE;
+			}
+			
+			aggregator = new CoverageAggregator(session, 
+					CoverageAggregator.getOperation(this.operationName), this.threadCount);
+			
+			result = aggregator.aggregate(files);
+		}
+		
+		if (result == null) {
+			System.err.println("no result coverage");
+			return EXIT_FAILURE;
+		}
+		
+		if (this.outFile != null) {
+			//stored coverage is named after the operation or the script
+			if (aggregator != null)
+				origin = getTracesLocation()[0].resolve(this.operationName).toString();
+			else
+				origin = new File(this.scriptFile).getAbsolutePath();
+			
+			CommonDatabaseDataSource.writeCoverage(this.outFile, program.getExecutableMD5(), 
+					"batch", result, origin);
+		}
+		
+		if (this.statsFile != null) {
+			try (PrintStream out = new PrintStream(this.statsFile, "UTF-8")) {
+				writeStats(out, program, result, aggregator, (System.nanoTime() - beginTime) / 1000000);
+			}
+		}
+		else
+			writeStats(System.out, program, result, aggregator, (System.nanoTime() - beginTime) / 1000000);
+		
+		result.closeNothrow();
+		session.close();
+		
+		return EXIT_SUCCESS;
+	}
+	
+	public static void main(String[] args) {
+		DragonDanceBatch batch = new DragonDanceBatch();
+		int exitCode;
+		
+		//there is no tool. messages go to the console
+		System.setProperty("java.awt.headless", "true");
+		
+		if (!batch.parseArgs(args)) {
+			usage();
+			System.exit(EXIT_USAGE);
+		}
+		
+		try {
+			exitCode = batch.run();
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			exitCode = EXIT_FAILURE;
+		}
+		
+		System.exit(exitCode);
+	}
+}
@@ -8,10 +8,17 @@ import dragondance.eng.session.SessionManager;
 import dragondance.scripting.DragonDanceScripting;
 import ghidra.app.plugin.PluginCategoryNames;
 import ghidra.app.plugin.ProgramPlugin;
+import ghidra.framework.model.DomainObject;
+import ghidra.framework.model.DomainObjectChangeRecord;
+import ghidra.framework.model.DomainObjectChangedEvent;
+import ghidra.framework.model.DomainObjectListener;
 import ghidra.framework.plugintool.*;
 import ghidra.framework.plugintool.util.PluginStatus;
 import ghidra.program.flatapi.FlatProgramAPI;
 import ghidra.program.model.listing.Program;
+import ghidra.program.util.ChangeManager;
+import ghidra.program.util.ProgramChangeRecord;
+import ghidra.program.util.ProgramLocation;
 
 
 //@formatter:off
@@ -24,7 +31,7 @@ import ghidra.program.model.listing.Program;
 					"collected by Dynamorio or Intel Pin binary instrumentation tools"
 )
 //@formatter:on
-public class DragondancePlugin extends ProgramPlugin {
+public class DragondancePlugin extends ProgramPlugin implements DomainObjectListener {
 	FlatProgramAPI api;
 	MainDockProvider mainDock;
 	
@@ -49,6 +56,8 @@ public class DragondancePlugin extends ProgramPlugin {
 		
 		DragonHelper.init(tool, api);
 		
+		program.addListener(this);
+		
 		if (Globals.EnableLogging) {
 			Log.setEnable(true);
 			
@@ -74,6 +83,94 @@ public class DragondancePlugin extends ProgramPlugin {
 		
 	}
 	
+	@Override
+	public void programDeactivated(Program program) {
+		program.removeListener(this);
+		
+		DragonHelper.invalidateInstructionSizeCache();
+		DragonHelper.invalidateExecutableBlockIndex();
+		
+		super.programDeactivated(program);
+	}
+	
+	/*
+	 * Marks the changed code ranges in the instruction cache. They are re-read
+	 * on next use, so analysis and disassembly do not make the whole program to be walked again.
+	 */
+	private void invalidateChangedCode(DomainObjectChangedEvent ev) {
+		DomainObjectChangeRecord rec;
+		ProgramChangeRecord pcr;
+		int type;
+		
+		for (int i=0;i<ev.numRecords();i++) {
+			rec = ev.getChangeRecord(i);
+			type = rec.getEventType();
+			
+			if (type != ChangeManager.DOCR_CODE_ADDED && 
+				type != ChangeManager.DOCR_CODE_REMOVED && 
+				type != ChangeManager.DOCR_CODE_REPLACED)
+				continue;
+			
+			if (!(rec instanceof ProgramChangeRecord)) {
+				DragonHelper.invalidateInstructionSizeCache();
+				return;
+			}
+			
+			pcr = (ProgramChangeRecord)rec;
+			
+			if (pcr.getStart() == null || pcr.getEnd() == null) {
+				//range of the change is unknown. drop the cached instructions
+				DragonHelper.invalidateInstructionSizeCache();
+				return;
+			}
+			
+			DragonHelper.invalidateInstructionRange(pcr.getStart().getOffset(), pcr.getEnd().getOffset());
+		}
+	}
+	
+	@Override
+	public void domainObjectChanged(DomainObjectChangedEvent ev) {
+		
+		//drop the cached executable blocks if the memory layout changed
+		if (ev.containsEvent(DomainObject.DO_OBJECT_RESTORED) ||
+			ev.containsEvent(ChangeManager.DOCR_MEMORY_BLOCK_ADDED) ||
+			ev.containsEvent(ChangeManager.DOCR_MEMORY_BLOCK_REMOVED) ||
+			ev.containsEvent(ChangeManager.DOCR_MEMORY_BLOCK_CHANGED) ||
+			ev.containsEvent(ChangeManager.DOCR_MEMORY_BLOCK_MOVED) ||
+			ev.containsEvent(ChangeManager.DOCR_MEMORY_BLOCK_SPLIT) ||
+			ev.containsEvent(ChangeManager.DOCR_MEMORY_BLOCKS_JOINED) ||
+			ev.containsEvent(ChangeManager.DOCR_IMAGE_BASE_CHANGED)) {
+			
+			DragonHelper.invalidateExecutableBlockIndex();
+			DragonHelper.invalidateInstructionSizeCache();
+		}
+		else if (ev.containsEvent(ChangeManager.DOCR_CODE_ADDED) ||
+			ev.containsEvent(ChangeManager.DOCR_CODE_REMOVED) ||
+			ev.containsEvent(ChangeManager.DOCR_CODE_REPLACED)) {
+			
+			invalidateChangedCode(ev);
+		}
+		else if (ev.containsEvent(ChangeManager.DOCR_FUNCTION_ADDED) ||
+			ev.containsEvent(ChangeManager.DOCR_FUNCTION_REMOVED) ||
+			ev.containsEvent(ChangeManager.DOCR_FUNCTION_BODY_CHANGED)) {
+			
+			DragonHelper.invalidateFunctionTable();
+		}
+	}
+	
+	@Override
+	protected void locationChanged(ProgramLocation loc) {
+		Session session;
+		
+		if (loc == null || loc.getAddress() == null)
+			return;
+		
+		session = SessionManager.getActiveSession();
+		
+		if (session != null)
+			session.setViewLocation(loc.getAddress().getOffset());
+	}
+	
 	@Override
 	public void programClosed(Program program) {
 		
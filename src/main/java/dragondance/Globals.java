@@ -1,7 +1,6 @@
 package dragondance;
 
 public class Globals {
-	public static boolean WithoutGhidra=false;
 	public static boolean DebugMode=false;
 	
 	public static boolean EnableLogging=true;
@@ -12,6 +11,18 @@ public class Globals {
 	
 	public static String LastFileDialogPath="";
 	
+	//coverages with more instructions than this are painted around the current view first
+	public static int LazyPaintInstructionThreshold=500000;
+	public static long LazyPaintPrefetchSize=0x4000;
+	
+	//max number of the coverage files imported at the same time
+	public static int MaxConcurrentImports=4;
+	
+	//built coverages are cached by their trace contents
+	public static boolean EnableTraceCache=true;
+	public static String TraceCacheDirectory=System.getProperty("user.home") + "/.dragondance/cache";
+	public static long TraceCacheMaxSize=1024L * 1024 * 1024;
+	
 	public static final float MIN_HUE = 190.0f;
 	public static final float MAX_HUE = 360.0f;
 	
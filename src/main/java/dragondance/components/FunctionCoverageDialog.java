@@ -0,0 +1,171 @@
+package dragondance.components;
+
+import java.awt.BorderLayout;
+import java.awt.Window;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+import javax.swing.table.AbstractTableModel;
+
+import docking.widgets.table.GTable;
+import dragondance.eng.DragonHelper;
+import dragondance.eng.FunctionCoverageIndex;
+
+/*
+ * Sortable table of the per function coverage of a coverage.
+ * Rows are read straight from the function coverage index. Clicking a column header
+ * ranks the functions by the index, double clicking a row goes to the function.
+ */
+public class FunctionCoverageDialog extends JDialog {
+	private static final long serialVersionUID = 1L;
+	
+	private static final String[] COLUMNS = {
+			"Function", "Entry point", "Covered", "Instructions", "Coverage %", "Density sum", "Max density"
+	};
+	
+	private static final int[] COLUMN_SORT_KEYS = {
+			FunctionCoverageIndex.SORT_BY_ENTRY_POINT,
+			FunctionCoverageIndex.SORT_BY_ENTRY_POINT,
+			FunctionCoverageIndex.SORT_BY_COVERED,
+			FunctionCoverageIndex.SORT_BY_INSTRUCTIONS,
+			FunctionCoverageIndex.SORT_BY_COVERAGE_RATIO,
+			FunctionCoverageIndex.SORT_BY_DENSITY_SUM,
+			FunctionCoverageIndex.SORT_BY_MAX_DENSITY
+	};
+	
+	private FunctionCoverageIndex index;
+	private FunctionTableModel model;
+	private GTable table;
+	private int sortColumn=-1;
+	private boolean descending=false;
+	
+	private class FunctionTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+		
+		//function index of each row
+		private int[] order;
+		
+		@Override
+		public int getRowCount() {
+			return this.order.length;
+		}
+		
+		@Override
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+		
+		@Override
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+		
+		@Override
+		public Class<?> getColumnClass(int column) {
+			switch (column) {
+			case 0:
+			case 1:
+				return String.class;
+			case 4:
+				return Double.class;
+			case 5:
+				return Long.class;
+			}
+			
+			return Integer.class;
+		}
+		
+		@Override
+		public Object getValueAt(int row, int column) {
+			int func = this.order[row];
+			
+			switch (column) {
+			case 0:
+				return index.getName(func);
+			case 1:
+				return String.format("%x", index.getEntryPoint(func));
+			case 2:
+				return index.getCoveredCount(func);
+			case 3:
+				return index.getInstructionCount(func);
+			case 4:
+				return Math.round(index.getCoverageRatio(func) * 10000) / 100.0;
+			case 5:
+				return index.getDensitySum(func);
+			case 6:
+				return index.getMaxDensity(func);
+			}
+			
+			return null;
+		}
+	}
+	
+	public FunctionCoverageDialog(Window owner, String coverageName, FunctionCoverageIndex index) {
+		super(owner, String.format("Function coverage of %s", coverageName), ModalityType.MODELESS);
+		
+		this.index = index;
+		this.model = new FunctionTableModel();
+		
+		//hottest functions first
+		this.sortColumn = 5;
+		this.descending = true;
+		this.model.order = index.rank(COLUMN_SORT_KEYS[this.sortColumn], this.descending);
+		
+		this.table = new GTable(this.model);
+		this.table.getSelectionModel().setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		
+		this.table.getTableHeader().addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int column = table.columnAtPoint(e.getPoint());
+				
+				if (column >= 0)
+					sortBy(table.convertColumnIndexToModel(column));
+			}
+		});
+		
+		this.table.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int row;
+				
+				if (e.getClickCount() != 2)
+					return;
+				
+				row = table.rowAtPoint(e.getPoint());
+				
+				if (row >= 0)
+					DragonHelper.goToAddress(index.getEntryPoint(model.order[row]));
+			}
+		});
+		
+		getContentPane().setLayout(new BorderLayout());
+		
+		getContentPane().add(new JLabel(String.format(" %d of %d functions covered, %d covered instructions out of the functions",
+				index.getCoveredFunctionCount(), index.getFunctionCount(), index.getUnattributedCount())), BorderLayout.NORTH);
+		
+		getContentPane().add(new JScrollPane(this.table), BorderLayout.CENTER);
+		
+		setSize(800, 500);
+		setLocationRelativeTo(owner);
+	}
+	
+	/*
+	 * Ranks the rows by the column. Clicking the same column again reverses the order.
+	 */
+	private void sortBy(int column) {
+		
+		if (column == this.sortColumn)
+			this.descending = !this.descending;
+		else
+			this.descending = column > 1;
+		
+		this.sortColumn = column;
+		this.model.order = this.index.rank(COLUMN_SORT_KEYS[column], this.descending);
+		this.model.fireTableDataChanged();
+	}
+}
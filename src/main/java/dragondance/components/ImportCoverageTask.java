@@ -0,0 +1,100 @@
+package dragondance.components;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dragondance.Globals;
+import dragondance.Log;
+import dragondance.datasource.CoverageData;
+import dragondance.eng.DragonHelper;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.Task;
+import ghidra.util.task.TaskMonitor;
+
+/*
+ * Imports the coverage files in the background.
+ * Each file goes through the parse (module filtering is done while parsing),
+ * range build and merge stages. At the end, the last imported coverage is painted.
+ *
+ * Files are imported concurrently but only Globals.MaxConcurrentImports of them
+ * are processed at the same time. So only that many raw entry tables are in the memory.
+ */
+public class ImportCoverageTask extends Task {
+	//parse, range build, merge and register stages of a file
+	public static final int STAGE_COUNT = 4;
+	
+	private MainDockProvider provider;
+	private List<String> files;
+	private List<String> failures;
+	
+	public ImportCoverageTask(MainDockProvider provider, List<String> files) {
+		super("Importing coverage data", true, true, false);
+		
+		this.provider = provider;
+		this.files = files;
+		this.failures = Collections.synchronizedList(new ArrayList<String>());
+	}
+	
+	@Override
+	public void run(TaskMonitor monitor) throws CancelledException {
+		ExecutorService executor;
+		List<Future<CoverageData>> results;
+		CoverageData lastCoverage=null;
+		int threadCount;
+		
+		threadCount = Math.max(1, Math.min(Globals.MaxConcurrentImports, this.files.size()));
+		
+		monitor.initialize((long)this.files.size() * STAGE_COUNT + 1);
+		
+		results = new ArrayList<Future<CoverageData>>();
+		executor = Executors.newFixedThreadPool(threadCount);
+		
+		for (String file : this.files) {
+			results.add(executor.submit(() -> {
+				return this.provider.importCoverage(file, monitor, this.failures);
+			}));
+		}
+		
+		executor.shutdown();
+		
+		try {
+			//a failed file does not stop waiting for the rest of the files
+			for (int i=0;i<results.size();i++) {
+				try {
+					CoverageData coverage = results.get(i).get();
+					
+					if (coverage != null)
+						lastCoverage = coverage;
+				} catch (ExecutionException e) {
+					Log.println("%s import failed (%s)", this.files.get(i), e.getCause());
+					
+					this.failures.add(String.format("%s could not be imported (%s)", 
+							this.files.get(i), e.getCause()));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			monitor.cancel();
+			executor.shutdownNow();
+		}
+		
+		if (!this.failures.isEmpty()) {
+			DragonHelper.showWarning("%d of %d coverage files could not be imported.\n\n%s",
+					this.failures.size(), this.files.size(), String.join("\n", this.failures));
+		}
+		
+		monitor.checkCanceled();
+		
+		if (lastCoverage != null) {
+			monitor.setMessage(String.format("Painting %s", lastCoverage.getName()));
+			this.provider.visualizeCoverage(lastCoverage);
+		}
+		
+		monitor.incrementProgress(1);
+	}
+}
@@ -10,6 +10,8 @@ import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
 
 import javax.swing.*;
 import javax.swing.border.BevelBorder;
@@ -27,6 +29,8 @@ import dragondance.StringResources;
 import dragondance.datasource.CoverageData;
 import dragondance.datasource.CoverageDataSource;
 import dragondance.eng.DragonHelper;
+import dragondance.eng.FunctionCoverageIndex;
+import dragondance.eng.GhidraProgramView;
 import dragondance.eng.session.Session;
 import dragondance.eng.session.SessionManager;
 import dragondance.exceptions.InvalidInstructionAddress;
@@ -35,6 +39,8 @@ import dragondance.scripting.DragonDanceScripting;
 import dragondance.util.TextGraphic;
 import dragondance.util.Util;
 import ghidra.framework.plugintool.PluginTool;
+import ghidra.util.task.TaskLauncher;
+import ghidra.util.task.TaskMonitor;
 import resources.Icons;
 
 
@@ -123,12 +129,45 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 		actAbout.setMenuBarData(
 				new MenuData(new String[] {"About"},null,null));
 		
+		DockingAction actSaveSession = new DockingAction("savesession",getName()) {
+			@Override
+			public void actionPerformed(ActionContext context) {
+				((MainDockProvider)context.getComponentProvider()).saveSession();
+			}
+		};
+		
+		DockingAction actOpenSession = new DockingAction("opensession",getName()) {
+			@Override
+			public void actionPerformed(ActionContext context) {
+				((MainDockProvider)context.getComponentProvider()).openSession();
+			}
+		};
+		
+		DockingAction actExportTable = new DockingAction("exportinstructiontable",getName()) {
+			@Override
+			public void actionPerformed(ActionContext context) {
+				((MainDockProvider)context.getComponentProvider()).exportInstructionTable();
+			}
+		};
+		
 		actCheckNewVer.setMenuBarData(
 				new MenuData(new String[] {"Check for update"},null,null));
 		
+		actSaveSession.setMenuBarData(
+				new MenuData(new String[] {"Save session"},null,null));
+		
+		actOpenSession.setMenuBarData(
+				new MenuData(new String[] {"Open session"},null,null));
+		
+		actExportTable.setMenuBarData(
+				new MenuData(new String[] {"Export instruction table"},null,null));
+		
 		tool.addLocalAction(this, actShell);
 		tool.addLocalAction(this, actAbout);
 		tool.addLocalAction(this, actCheckNewVer);
+		tool.addLocalAction(this, actSaveSession);
+		tool.addLocalAction(this, actOpenSession);
+		tool.addLocalAction(this, actExportTable);
 		
 		DockingAction actImport = new DockingAction("Import coverage data",getName()) {
 
@@ -256,81 +295,195 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 		dtm.fireTableDataChanged();
 	}
 	
-	private CoverageData importCoverage(String coverageFile) throws FileNotFoundException {
+	private void reportImportFailure(List<String> failures, String message, Object ...args) {
+		if (failures == null)
+			DragonHelper.showWarning(message, args);
+		else
+			failures.add(String.format(message, args));
+	}
+	
+	/*
+	 * Imports a coverage file. It may be called from the import task's worker threads.
+	 * If failures is not null, errors are collected into it instead of showing a message for each.
+	 * The coverage is built detached and added to the session only after it's built,
+	 * so a failed import never leaves a half built coverage in the session.
+	 */
+	CoverageData importCoverage(String coverageFile, TaskMonitor monitor, List<String> failures) throws FileNotFoundException {
 		CoverageData coverage;
 		Session session = getSession();
+		boolean built=false;
 		
 		if (session == null)
 			return null;
 		
-		coverage = session.addCoverageData(coverageFile);
+		if (monitor.isCancelled())
+			return null;
 		
-		setStatusText("Loading...");
+		monitor.setMessage(String.format("Parsing %s", Util.getObjectNameFromPath(coverageFile)));
 		
-		if (!coverage.getSource().process()) {
-			DragonHelper.showWarning("%s could not be processed",coverageFile);
+		coverage = session.createDetachedCoverageData(coverageFile);
+		
+		if (coverage == null) {
+			reportImportFailure(failures, "%s is not a supported coverage file", coverageFile);
 			return null;
 		}
 		
 		try {
-			if (coverage.build()) {
-				
-				Runnable postBuildGuiOp = new Runnable() {
-					@Override
-					public void run() {
-						addCoverageTable(coverage);
-						writeStatusTextInfoPanel(StringResources.COVERAGE_IMPORTED_HINT);
-						setStatusText("Done");
-					}
-				};
+			if (!coverage.getSource().process(monitor)) {
+				if (!monitor.isCancelled())
+					reportImportFailure(failures, "%s could not be processed",coverageFile);
 				
-				if (DragonHelper.isUiDispatchThread())
-					postBuildGuiOp.run();
-				else
-					DragonHelper.runOnSwingThread(postBuildGuiOp, true);
-	
+				return null;
 			}
-		} catch (InvalidInstructionAddress e1) {
 			
-			session.removeCoverageData(coverage.getSourceId());
+			monitor.incrementProgress(1);
 			
-			String msg = e1.getMessage() + newLine(2) + StringResources.MISMATCHED_EXECUTABLE;
-			DragonHelper.showWarning(msg, DragonHelper.getExecutableMD5Hash());
+			built = coverage.build(monitor);
+		} catch (InvalidInstructionAddress e1) {
 			
-			session.removeCoverageData(coverage.getSourceId());
+			String msg = e1.getMessage() + newLine(2) + StringResources.MISMATCHED_EXECUTABLE;
+			reportImportFailure(failures, msg, DragonHelper.getExecutableMD5Hash());
 			
 			return null;
 		
 		} catch (OperationAbortedException e1) {
 			
-			DragonHelper.showWarning( 
-					"Operation could not be continue. (" +
-					e1.getMessage() + ")");
+			if (!monitor.isCancelled()) {
+				reportImportFailure(failures,
+						"Operation could not be continue. (" +
+						e1.getMessage() + ")");
+			}
+			
+			return null;
+		} catch (RuntimeException e1) {
 			
-			session.removeCoverageData(coverage.getSourceId());
+			reportImportFailure(failures, "%s could not be imported (%s)", coverageFile, e1.toString());
 			
 			return null;
 		}
+		finally {
+			if (!built)
+				coverage.closeNothrow();
+		}
+		
+		if (!built)
+			return null;
+		
+		session.attachCoverageData(coverage);
+		
+		Runnable postBuildGuiOp = new Runnable() {
+			@Override
+			public void run() {
+				addCoverageTable(coverage);
+				writeStatusTextInfoPanel(StringResources.COVERAGE_IMPORTED_HINT);
+				setStatusText("Done");
+			}
+		};
+		
+		if (DragonHelper.isUiDispatchThread())
+			postBuildGuiOp.run();
+		else
+			DragonHelper.runOnSwingThread(postBuildGuiOp, true);
 		
+		monitor.incrementProgress(1);
 		
 		return coverage;
 		
 	}
 	
+	private CoverageData importCoverage(String coverageFile) throws FileNotFoundException {
+		return importCoverage(coverageFile, TaskMonitor.DUMMY, null);
+	}
 	
 	private void importCoverageAsync() {
-		String file = DragonHelper.askFile(tool.getToolFrame(),"Select coverage data", "load it up!");
+		List<String> files = DragonHelper.askFiles(tool.getToolFrame(),"Select coverage data", "load it up!");
+		
+		if (files.isEmpty())
+			return;
+		
+		new TaskLauncher(new ImportCoverageTask(this, files), tool.getToolFrame());
+	}
+	
+	private void saveSession() {
+		Session session = getSession();
+		String file;
+		int count;
+		
+		if (session == null)
+			return;
+		
+		file = DragonHelper.askFile(tool.getToolFrame(), "Save session", "save", false);
 		
 		if (file == null)
 			return;
 		
-		DragonHelper.queuePoolWorkItem(() -> {
-			try {
-				importCoverage(file);
-			} catch (FileNotFoundException e) {
-				DragonHelper.showWarning("File not found");
-			}
-		});
+		try {
+			count = session.save(file);
+		} catch (IOException e) {
+			DragonHelper.showWarning("Session could not be saved (%s)", e.getMessage());
+			return;
+		}
+		
+		setStatusText(String.format("%d coverages saved", count));
+	}
+	
+	private void openSession() {
+		Session session = getSession();
+		List<CoverageData> coverages;
+		String file;
+		
+		if (session == null)
+			return;
+		
+		file = DragonHelper.askFile(tool.getToolFrame(), "Open session", "open");
+		
+		if (file == null)
+			return;
+		
+		try {
+			coverages = session.loadDatabase(file);
+		} catch (IOException e) {
+			DragonHelper.showWarning("Session could not be opened (%s)", e.getMessage());
+			return;
+		}
+		
+		for (CoverageData coverage : coverages) {
+			addCoverageTable(coverage);
+		}
+		
+		writeStatusTextInfoPanel(StringResources.COVERAGE_IMPORTED_HINT);
+		setStatusText(String.format("%d coverages restored", coverages.size()));
+	}
+	
+	/*
+	 * Exports the instruction lengths of the program for the batch mode (DragonDanceBatch)
+	 */
+	private void exportInstructionTable() {
+		Session session = getSession();
+		String file;
+		int count;
+		
+		if (session == null)
+			return;
+		
+		if (!(session.getProgramView() instanceof GhidraProgramView)) {
+			DragonHelper.showWarning("Session is not bound to a program");
+			return;
+		}
+		
+		file = DragonHelper.askFile(tool.getToolFrame(), "Export instruction table", "export", false);
+		
+		if (file == null)
+			return;
+		
+		try {
+			count = ((GhidraProgramView)session.getProgramView()).exportInstructionTable(file);
+		} catch (IOException e) {
+			DragonHelper.showWarning("Instruction table could not be exported (%s)", e.getMessage());
+			return;
+		}
+		
+		setStatusText(String.format("%d instructions exported", count));
 	}
 	
 	private int coverageIdToTableRow(int id) {
@@ -368,6 +521,35 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 		return ids;
 	}
 	
+	private void showFunctionCoverage() {
+		Session session = getSession();
+		FunctionCoverageIndex index;
+		CoverageData coverage;
+		int id;
+		
+		if (session == null)
+			return;
+		
+		id = getSelectedCoverageId();
+		
+		if (id == 0)
+			return;
+		
+		coverage = session.getCoverage(id);
+		
+		if (coverage == null)
+			return;
+		
+		index = coverage.getFunctionIndex();
+		
+		if (index == null) {
+			DragonHelper.showWarning("Functions of %s are not known", coverage.getName());
+			return;
+		}
+		
+		new FunctionCoverageDialog(tool.getToolFrame(), coverage.getName(), index).setVisible(true);
+	}
+	
 	private void onDeleteCoverageItemClick() {
 		Session session = getSession();
 		
@@ -547,11 +729,12 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 	private void buildCoverageListView() {
 		
 		JPopupMenu contextMenu;
-		JMenuItem miDelete,miSwitch;
+		JMenuItem miDelete,miSwitch,miFunctions;
 		JMenuItem miShowIntersected,miShowDifferences,miShowDistinct,miShowSum;
 		
 		miDelete = new JMenuItem("Delete");
 		miSwitch = new JMenuItem("Switch to");
+		miFunctions = new JMenuItem("Function coverage");
 		
 		miShowIntersected = new JMenuItem("Intersection");
 		miShowDifferences = new JMenuItem("Difference");
@@ -566,6 +749,10 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 			onSwitchCoverageItemClick();
 		});
 		
+		miFunctions.addActionListener(e -> {
+			showFunctionCoverage();
+		});
+		
 		miShowIntersected.addActionListener(e -> {
 			showMultiCoverageOperation(OMT_INTERSECT);
 		});
@@ -586,6 +773,7 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 		
 		contextMenu.add(miDelete);
 		contextMenu.add(miSwitch);
+		contextMenu.add(miFunctions);
 		contextMenu.add(new JSeparator());
 		contextMenu.add(miShowIntersected);
 		contextMenu.add(miShowDifferences);
@@ -748,7 +936,7 @@ public class MainDockProvider extends ComponentProvider implements GuiAffectedOp
 	
 	@Override
 	public boolean goTo(long offset) {
-		boolean success = DragonHelper.goToAddress(DragonHelper.getImageBase().getOffset() + offset);
+		boolean success = DragonHelper.goToAddress(DragonHelper.getImageBaseOffset() + offset);
 		
 		if (!success) {
 			DragonHelper.showWarning("offset 0x%x is not valid",offset);
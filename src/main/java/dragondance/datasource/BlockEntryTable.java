@@ -0,0 +1,192 @@
+package dragondance.datasource;
+
+import java.util.Arrays;
+
+/*
+ * Columnar storage for the basic block entries of a coverage source.
+ * 
+ * Entries are kept in parallel primitive arrays which are grown in fixed size chunks.
+ * So there is no per entry object and growing the table never copies the already stored
+ * entries. Block size and module id are both 16 bit wide in the coverage files
+ * so they are packed into a single int column. Instruction count column is only
+ * allocated for the chunks which actually have an instruction count (ddph)
+ */
+public class BlockEntryTable {
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	private int[][] offsets;
+	private int[][] sizeModules;
+	private int[][] instCounts;
+	
+	private int count=0;
+	
+	public class Cursor {
+		private int index=-1;
+		private int slot=CHUNK_MASK;
+		private int[] offsetChunk,sizeModuleChunk,instCountChunk;
+		
+		private Cursor() {
+		}
+		
+		public boolean next() {
+			
+			if (this.index + 1 >= count)
+				return false;
+			
+			this.index++;
+			
+			if (++this.slot == CHUNK_SIZE) {
+				int chunk = this.index >>> CHUNK_SHIFT;
+				
+				this.slot = this.index & CHUNK_MASK;
+				this.offsetChunk = offsets[chunk];
+				this.sizeModuleChunk = sizeModules[chunk];
+				this.instCountChunk = instCounts[chunk];
+			}
+			
+			return true;
+		}
+		
+		public final int getIndex() {
+			return this.index;
+		}
+		
+		public final int getOffset() {
+			return this.offsetChunk[this.slot];
+		}
+		
+		public final int getSize() {
+			return this.sizeModuleChunk[this.slot] & 0xFFFF;
+		}
+		
+		public final int getModuleId() {
+			return this.sizeModuleChunk[this.slot] >>> 16;
+		}
+		
+		public final int getInstructionCount() {
+			if (this.instCountChunk == null)
+				return 0;
+			
+			return this.instCountChunk[this.slot];
+		}
+	}
+	
+	public BlockEntryTable() {
+		clear();
+	}
+	
+	private void ensureChunk(int chunk) {
+		
+		if (chunk < this.offsets.length && this.offsets[chunk] != null)
+			return;
+		
+		if (chunk >= this.offsets.length) {
+			int newLength = this.offsets.length * 2;
+			
+			if (newLength <= chunk)
+				newLength = chunk + 1;
+			
+			this.offsets = Arrays.copyOf(this.offsets, newLength);
+			this.sizeModules = Arrays.copyOf(this.sizeModules, newLength);
+			this.instCounts = Arrays.copyOf(this.instCounts, newLength);
+		}
+		
+		this.offsets[chunk] = new int[CHUNK_SIZE];
+		this.sizeModules[chunk] = new int[CHUNK_SIZE];
+	}
+	
+	public void add(int offset, int size, int moduleId, int instCount) {
+		final int chunk = this.count >>> CHUNK_SHIFT;
+		final int slot = this.count & CHUNK_MASK;
+		
+		ensureChunk(chunk);
+		
+		this.offsets[chunk][slot] = offset;
+		this.sizeModules[chunk][slot] = (size & 0xFFFF) | (moduleId << 16);
+		
+		if (instCount != 0) {
+			if (this.instCounts[chunk] == null)
+				this.instCounts[chunk] = new int[CHUNK_SIZE];
+			
+			this.instCounts[chunk][slot] = instCount;
+		}
+		
+		this.count++;
+	}
+	
+	/*
+	 * Appends all entries of the given table. Columns are copied in bulk
+	 * between the chunk boundaries of both tables.
+	 */
+	public void addAll(BlockEntryTable table) {
+		int srcIndex=0,len,srcSlot,destSlot,destChunk;
+		
+		while (srcIndex < table.count) {
+			srcSlot = srcIndex & CHUNK_MASK;
+			destSlot = this.count & CHUNK_MASK;
+			destChunk = this.count >>> CHUNK_SHIFT;
+			
+			len = Math.min(CHUNK_SIZE - srcSlot, CHUNK_SIZE - destSlot);
+			len = Math.min(len, table.count - srcIndex);
+			
+			ensureChunk(destChunk);
+			
+			int[] srcInstCounts = table.instCounts[srcIndex >>> CHUNK_SHIFT];
+			
+			System.arraycopy(table.offsets[srcIndex >>> CHUNK_SHIFT], srcSlot, this.offsets[destChunk], destSlot, len);
+			System.arraycopy(table.sizeModules[srcIndex >>> CHUNK_SHIFT], srcSlot, this.sizeModules[destChunk], destSlot, len);
+			
+			if (srcInstCounts != null) {
+				if (this.instCounts[destChunk] == null)
+					this.instCounts[destChunk] = new int[CHUNK_SIZE];
+				
+				System.arraycopy(srcInstCounts, srcSlot, this.instCounts[destChunk], destSlot, len);
+			}
+			
+			srcIndex += len;
+			this.count += len;
+		}
+	}
+	
+	public final int size() {
+		return this.count;
+	}
+	
+	public final boolean isEmpty() {
+		return this.count == 0;
+	}
+	
+	public final int getOffset(int index) {
+		return this.offsets[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+	
+	public final int getSize(int index) {
+		return this.sizeModules[index >>> CHUNK_SHIFT][index & CHUNK_MASK] & 0xFFFF;
+	}
+	
+	public final int getModuleId(int index) {
+		return this.sizeModules[index >>> CHUNK_SHIFT][index & CHUNK_MASK] >>> 16;
+	}
+	
+	public final int getInstructionCount(int index) {
+		int[] chunk = this.instCounts[index >>> CHUNK_SHIFT];
+		
+		if (chunk == null)
+			return 0;
+		
+		return chunk[index & CHUNK_MASK];
+	}
+	
+	public Cursor cursor() {
+		return new Cursor();
+	}
+	
+	public void clear() {
+		this.offsets = new int[1][];
+		this.sizeModules = new int[1][];
+		this.instCounts = new int[1][];
+		this.count = 0;
+	}
+}
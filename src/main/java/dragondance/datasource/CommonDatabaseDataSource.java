@@ -1,18 +1,370 @@
 package dragondance.datasource;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dragondance.eng.InstructionHitTable;
 
 /*
- Database file format
- 
+ Database file format (little endian)
+
+ header:
+ 	char[8] magic ("DDSESSDB")
+ 	int version
+ 	int coverage count
+ 	char[32] executable md5
+ 	short length + utf8 session name
+
+ coverage record (repeated coverage count times):
+ 	long record length (including this field)
+ 	int source type (-1 for a logical coverage), module count, entry count, readed entry count, readed module count
+ 	int initial range count, merged range count, instruction count
+ 	short length + utf8 original source file path
+ 	long[instruction count] instruction offsets from the image base
+ 	int[instruction count] densities
+ 	byte[instruction count] instruction sizes
+
+ Instructions are the already built and merged ranges of the coverage.
+ So a stored coverage is loaded without decoding and merging its block entries again.
  */
 
 public class CommonDatabaseDataSource extends CoverageDataSource {
-
-	public CommonDatabaseDataSource(String sourceFile) throws FileNotFoundException {
-		super(sourceFile, null,-1);
+	
+	private static final byte[] MAGIC = "DDSESSDB".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final int MD5_LENGTH = 32;
+	
+	//fixed part of a coverage record. length, 8 ints
+	private static final int RECORD_HEADER_SIZE = 8 + 8 * 4;
+	
+	//columns are written through this size of buffer
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+	
+	private InstructionHitTable table;
+	private int initialRangeCount=0;
+	private int mergedRangeCount=0;
+	
+	public static class DatabaseContent {
+		private String md5;
+		private String sessionName;
+		private List<CommonDatabaseDataSource> sources;
+		
+		public final String getExecutableMD5() {
+			return this.md5;
+		}
+		
+		public final String getSessionName() {
+			return this.sessionName;
+		}
+		
+		public final List<CommonDatabaseDataSource> getSources() {
+			return this.sources;
+		}
 	}
 	
+	//the database file is not kept open. the record is copied into the table
+	private CommonDatabaseDataSource(String dbFile, int sourceType) {
+		super(dbFile, sourceType);
+	}
+	
+	@Override
+	public boolean process() {
+		this.processed = true;
+		
+		return super.process();
+	}
+	
+	@Override
+	public InstructionHitTable getInstructionTable() {
+		return this.table;
+	}
+	
+	@Override
+	public void releaseEntries() {
+		//block entries were never read. the ranges are built from the table, it is not needed anymore
+		this.table = null;
+	}
+	
+	public final int getInitialRangeCount() {
+		return this.initialRangeCount;
+	}
+	
+	public final int getMergedRangeCount() {
+		return this.mergedRangeCount;
+	}
+	
+	private static String readString(ByteBuffer buf) {
+		byte[] data = new byte[buf.getShort() & 0xFFFF];
+		
+		buf.get(data);
+		
+		return new String(data, StandardCharsets.UTF_8);
+	}
+	
+	private static void putString(ByteBuffer buf, byte[] data) {
+		buf.putShort((short)data.length);
+		buf.put(data);
+	}
+	
+	private static byte[] stringBytes(String s) {
+		byte[] data = s.getBytes(StandardCharsets.UTF_8);
+		
+		if (data.length > 0xFFFF)
+			throw new IllegalArgumentException("string is too long to be stored");
+		
+		return data;
+	}
+	
+	private static boolean isMagicMatch(ByteBuffer buf) {
+		for (int i=0;i<MAGIC.length;i++) {
+			if (buf.get() != MAGIC[i])
+				return false;
+		}
+		
+		return true;
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		
+		while (buf.hasRemaining())
+			channel.write(buf);
+		
+		buf.clear();
+	}
+	
+	private static void ensureSpace(FileChannel channel, ByteBuffer buf, int size) throws IOException {
+		if (buf.remaining() < size)
+			flush(channel, buf);
+	}
+	
+	private static void writeRecord(FileChannel channel, ByteBuffer buf, CoverageData coverage, String origin) throws IOException {
+		CoverageDataSource source = coverage.getSource();
+		InstructionHitTable table = coverage.getInstructionTable();
+		long imageBase = coverage.getProgramView().getImageBase();
+		byte[] path;
+		int count = table.size();
+		
+		path = stringBytes(origin);
+		
+		ensureSpace(channel, buf, RECORD_HEADER_SIZE + 2 + path.length);
+		
+		buf.putLong(RECORD_HEADER_SIZE + 2 + path.length + (long)count * (8 + 4 + 1));
+		
+		if (source != null) {
+			buf.putInt(source.getType());
+			buf.putInt(source.getModuleCount());
+			buf.putInt(source.getEntryCount());
+			buf.putInt(source.getReadedEntryCount());
+			buf.putInt(source.getReadedModuleCount());
+		}
+		else {
+			buf.putInt(-1);
+			buf.putInt(0);
+			buf.putInt(0);
+			buf.putInt(0);
+			buf.putInt(0);
+		}
+		
+		buf.putInt(coverage.getInitialRangeCount());
+		buf.putInt(coverage.getMergedRangeCount());
+		buf.putInt(count);
+		putString(buf, path);
+		
+		for (int i=0;i<count;i++) {
+			ensureSpace(channel, buf, 8);
+			buf.putLong(table.getAddr(i) - imageBase);
+		}
+		
+		for (int i=0;i<count;i++) {
+			ensureSpace(channel, buf, 4);
+			buf.putInt(table.getDensity(i));
+		}
+		
+		for (int i=0;i<count;i++) {
+			ensureSpace(channel, buf, 1);
+			buf.put((byte)table.getSize(i));
+		}
+	}
+	
+	/*
+	 * Writes the built coverages into the database file. Logical coverages are not stored.
+	 */
+	public static int writeDatabase(String dbFile, String md5, String sessionName, List<CoverageData> coverages) throws IOException {
+		List<CoverageData> storable = new ArrayList<CoverageData>();
+		
+		for (CoverageData coverage : coverages) {
+			if (!coverage.isLogicalCoverageData() && coverage.getRangeCount() > 0)
+				storable.add(coverage);
+		}
+		
+		return write(dbFile, md5, sessionName, storable, null);
+	}
+	
+	/*
+	 * Writes a single coverage, logical ones (results of the set operations) too.
+	 * It is loaded back as a coverage named after the origin.
+	 */
+	public static void writeCoverage(String dbFile, String md5, String sessionName, CoverageData coverage, String origin) throws IOException {
+		write(dbFile, md5, sessionName, Collections.singletonList(coverage), origin);
+	}
+	
+	private static int write(String dbFile, String md5, String sessionName, List<CoverageData> storable, String origin) throws IOException {
+		ByteBuffer buf;
+		byte[] md5Bytes;
+		int written=0;
+		
+		md5Bytes = md5.getBytes(StandardCharsets.US_ASCII);
+		
+		if (md5Bytes.length != MD5_LENGTH)
+			throw new IOException("invalid executable md5: " + md5);
+		
+		buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		
+		try (RandomAccessFile raf = new RandomAccessFile(dbFile, "rw")) {
+			FileChannel channel = raf.getChannel();
+			
+			raf.setLength(0);
+			
+			buf.put(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(storable.size());
+			buf.put(md5Bytes);
+			putString(buf, stringBytes(sessionName));
+			
+			for (CoverageData coverage : storable) {
+				writeRecord(channel, buf, coverage, origin != null ? origin : coverage.getSourceFilePath());
+				written++;
+			}
+			
+			flush(channel, buf);
+		}
+		
+		return written;
+	}
+	
+	private static CommonDatabaseDataSource readRecord(String dbFile, MappedByteBuffer buf, long imageBase) {
+		CommonDatabaseDataSource source;
+		long[] addrs;
+		int[] densities;
+		byte[] sizes;
+		int count;
+		
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.getLong();
+		
+		source = new CommonDatabaseDataSource(dbFile, buf.getInt());
+		
+		source.moduleCount = buf.getInt();
+		source.entryTableSize = buf.getInt();
+		source.readedEntryCount = buf.getInt();
+		source.readedModuleCount = buf.getInt();
+		source.initialRangeCount = buf.getInt();
+		source.mergedRangeCount = buf.getInt();
+		count = buf.getInt();
+		
+		source.setOrigin(readString(buf));
+		
+		addrs = new long[count];
+		densities = new int[count];
+		sizes = new byte[count];
+		
+		//bulk copy the columns out of the mapped record
+		buf.asLongBuffer().get(addrs);
+		buf.position(buf.position() + count * 8);
+		
+		buf.asIntBuffer().get(densities);
+		buf.position(buf.position() + count * 4);
+		
+		buf.get(sizes);
+		
+		for (int i=0;i<count;i++)
+			addrs[i] += imageBase;
+		
+		source.table = new InstructionHitTable(addrs, sizes, densities, count);
+		
+		return source;
+	}
+	
+	/*
+	 * Maps the database file and loads its coverages. Each coverage record is mapped
+	 * and its columns are copied in bulk. Instruction offsets are rebased to the given image base.
+	 */
+	public static DatabaseContent readDatabase(String dbFile, long imageBase) throws IOException {
+		DatabaseContent content = new DatabaseContent();
+		MappedByteBuffer buf;
+		long pos,fileSize,recordLength;
+		int count;
+		byte[] md5Bytes;
+		
+		content.sources = new ArrayList<CommonDatabaseDataSource>();
+		
+		try (RandomAccessFile raf = new RandomAccessFile(dbFile, "r")) {
+			FileChannel channel = raf.getChannel();
+			
+			fileSize = channel.size();
+			
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAGIC.length + 8 + MD5_LENGTH + 2 + 0xFFFF));
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if (buf.remaining() < MAGIC.length + 8 + MD5_LENGTH + 2 || !isMagicMatch(buf))
+				throw new IOException(dbFile + " is not a session database");
+			
+			if (buf.getInt() != VERSION)
+				throw new IOException("unsupported session database version");
+			
+			count = buf.getInt();
+			
+			md5Bytes = new byte[MD5_LENGTH];
+			buf.get(md5Bytes);
+			
+			content.md5 = new String(md5Bytes, StandardCharsets.US_ASCII);
+			content.sessionName = readString(buf);
+			
+			pos = buf.position();
+			
+			try {
+				for (int i=0;i<count;i++) {
+					
+					if (pos + 8 > fileSize)
+						throw new IOException("session database is truncated");
+					
+					buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, 8);
+					buf.order(ByteOrder.LITTLE_ENDIAN);
+					
+					recordLength = buf.getLong();
+					
+					if (recordLength < RECORD_HEADER_SIZE || pos + recordLength > fileSize)
+						throw new IOException("session database is truncated");
+					
+					buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, recordLength);
+					
+					content.sources.add(readRecord(dbFile, buf, imageBase));
+					
+					pos += recordLength;
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				for (CommonDatabaseDataSource source : content.sources) {
+					try {
+						source.close();
+					} catch (Exception ce) { }
+				}
+				
+				throw e;
+			}
+		}
+		
+		return content;
+	}
 	
-
 }
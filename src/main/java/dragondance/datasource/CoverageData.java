@@ -1,27 +1,35 @@
 package dragondance.datasource;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import dragondance.Globals;
 import dragondance.Log;
 import dragondance.eng.CodeRange;
+import dragondance.eng.ColorRunList;
+import dragondance.eng.CoverageBitmap;
 import dragondance.eng.DragonHelper;
+import dragondance.eng.FunctionCoverageIndex;
+import dragondance.eng.FunctionTable;
+import dragondance.eng.InstructionAddressMap;
+import dragondance.eng.InstructionHitTable;
 import dragondance.eng.InstructionInfo;
+import dragondance.eng.PaintBatch;
 import dragondance.eng.Painter;
+import dragondance.eng.ProgramView;
 import dragondance.eng.session.Session;
-import dragondance.eng.session.SessionManager;
 import dragondance.exceptions.InvalidInstructionAddress;
 import dragondance.exceptions.OperationAbortedException;
+import ghidra.util.task.TaskMonitor;
 
 class CodeRangeComparator implements Comparator<CodeRange> {
 
 	@Override
 	public int compare(CodeRange o1, CodeRange o2) {
-		return (int)(o1.getRangeStart() - o2.getRangeStart());
+		return Long.compare(o1.getRangeStart(), o2.getRangeStart());
 	}
 	
 }
@@ -30,7 +38,11 @@ public class CoverageData implements AutoCloseable {
 	private static CodeRangeComparator rangeListComparator = new CodeRangeComparator();
 	
 	private List<CodeRange> rangeList = null;
-	private HashMap<Long,List<InstructionInfo>> addressMap = null;
+	private InstructionAddressMap addressMap = null;
+	private CoverageBitmap bitmap = null;
+	private InstructionHitTable hitTable = null;
+	private boolean densityPreserved=false;
+	private FunctionCoverageIndex functionIndex=null;
 	
 	private CoverageDataSource source = null;
 	private int maxDensity=0;
@@ -38,131 +50,283 @@ public class CoverageData implements AutoCloseable {
 	private int initialRangeCount=0;
 	private int mergedRangeCount=0;
 	
+	private static final int LAZY_PAINT_RUNS_PER_STEP = 4096;
+	private static final int CANCEL_CHECK_MASK = 0xFFF;
+	
+	private ColorRunList colorRuns=null;
+	
+	//runs already applied (or being applied) by the lazy painting. null if all of them are applied
+	private BitSet paintedRuns=null;
+	private int paintGeneration=0;
 	private boolean visualized=false;
+	
+	//view region that the background painter paints first. null if there is no request
+	private long[] requestedRegion=null;
+	
+	//runs before it are already painted. the background painter goes on from it
+	private int paintCursor=0;
+	
+	/*
+	 * paintLock guards the paint state above and is never held during a transaction.
+	 * applyLock keeps the paint transactions of the coverage in order. It is taken
+	 * before the paintLock, and never by the swing thread for the view requests.
+	 */
+	private final Object paintLock = new Object();
+	private final Object applyLock = new Object();
 	private boolean sorted=false;
+	
+	//instruction lists of the ranges are not in the address order when they are read one after the other
+	private boolean interleaved=false;
+	
 	private boolean inClose=false;
 	
 	private Session ownerSession=null;
+	private ProgramView program;
 	
-	public CoverageData(CoverageDataSource source) {
-		this.source = source;
-		this.addressMap = new HashMap<Long,List<InstructionInfo>>();
+	/*
+	 * Creates a coverage that is owned by the session and built against its program view
+	 */
+	public CoverageData(CoverageDataSource source, Session owner) {
+		this(source, owner.getProgramView());
 		
-		this.ownerSession = SessionManager.getActiveSession();
+		this.ownerSession = owner;
 	}
 	
-	private static CoverageData newLogical() {
-		CoverageData cov = new CoverageData(null);
-		cov.rangeList = new ArrayList<CodeRange>();
+	/*
+	 * Creates a coverage that is not owned by a session.
+	 * The ranges are built against the given program view.
+	 */
+	public CoverageData(CoverageDataSource source, ProgramView program) {
+		this.source = source;
+		this.program = program;
 		
-		return cov;
+		//address map is only read by the instruction dumps
+		if (Globals.DumpInstructions)
+			this.addressMap = new InstructionAddressMap();
 	}
 	
-	public static CoverageData intersect(CoverageData covData1, CoverageData covData2) {
-		
-		CodeRange lastRange = null;
-		CoverageData isectResult = CoverageData.newLogical();
+	/*
+	 * Position in the instruction list of a code range
+	 */
+	private static class RangeCursor {
+		final CodeRange range;
+		int index=0;
+		long addr;
+		
+		RangeCursor(CodeRange range) {
+			this.range = range;
+			this.addr = range.getInstruction(0).getAddr();
+		}
 		
-		for (Long key : covData1.addressMap.keySet()) {
-			if (covData2.addressMap.containsKey(key)) {
-				InstructionInfo inst = covData1.lookupAddressMapSingle(key);
-				
-				lastRange = isectResult.pushRangeListNoThrow(lastRange,inst.getAddr(),inst.getSize(),false);
+		boolean advance() {
+			if (++this.index >= this.range.getInstructionCount())
+				return false;
 			
-			}
+			this.addr = this.range.getInstruction(this.index).getAddr();
+			return true;
 		}
-		
-		isectResult.merge();
-		
-		return isectResult;
 	}
 	
-	public static CoverageData difference(CoverageData covData1, CoverageData covData2) {
-		CodeRange lastRange = null;
-		CoverageData diffResult;
-		InstructionInfo inst;
-		
-		HashSet<Long> rightKeyset = new HashSet<Long>();
-		
-		rightKeyset.addAll(covData2.addressMap.keySet());
-		
-		diffResult = CoverageData.newLogical();
-		
-		for (Long key : covData1.addressMap.keySet()) {
-			if (!covData2.addressMap.containsKey(key)) {
-				inst = covData1.lookupAddressMapSingle(key);
-				
-				lastRange = diffResult.pushRangeListNoThrow(lastRange, inst.getAddr(), inst.getSize(), false);
+	/*
+	 * Sequential reader of the covered instructions of a coverage in the strictly ascending address order.
+	 * If the ranges interleave, their instruction lists are merged and the same instruction
+	 * decoded by more than one range is read once with the summed hit count.
+	 */
+	private static class InstructionStream {
+		private CoverageData cov;
+		private int rangeIndex=0;
+		private int instIndex=-1;
+		private PriorityQueue<RangeCursor> cursors=null;
+		
+		long addr;
+		int size;
+		int density;
+		
+		InstructionStream(CoverageData cov) {
+			this.cov = cov;
+			
+			if (cov.hitTable != null) {
+				cov.hitTable.normalize();
+				return;
 			}
+			
+			cov.materialize();
+			cov.sort();
+			
+			if (cov.interleaved)
+				this.cursors = new PriorityQueue<RangeCursor>((c1,c2) -> Long.compare(c1.addr, c2.addr));
 		}
 		
-		
-		diffResult.merge();
-		
-		return diffResult;
-	}
-	
-	public static CoverageData distinct(CoverageData covData1, CoverageData covData2) {
-		CodeRange lastRange = null;
-		CoverageData distinctResult;
-		InstructionInfo inst;
-		
-		HashSet<Long> rightKeyset = new HashSet<Long>();
-		
-		rightKeyset.addAll(covData2.addressMap.keySet());
-		
-		distinctResult = CoverageData.newLogical();
-		
-		for (Long key : covData1.addressMap.keySet()) {
+		boolean next() {
+			InstructionHitTable table = this.cov.hitTable;
 			
-			if (!covData2.addressMap.containsKey(key)) {
+			if (table != null) {
+				if (++this.instIndex >= table.size())
+					return false;
 				
-				inst = covData1.lookupAddressMapSingle(key);
+				this.addr = table.getAddr(this.instIndex);
+				this.size = table.getSize(this.instIndex);
+				this.density = table.getDensity(this.instIndex);
+				return true;
+			}
+			
+			List<CodeRange> ranges = this.cov.rangeList;
+			
+			if (ranges == null)
+				return false;
+			
+			if (this.cursors != null)
+				return nextInterleaved(ranges);
+			
+			while (this.rangeIndex < ranges.size()) {
+				CodeRange range = ranges.get(this.rangeIndex);
 				
-				lastRange = distinctResult.pushRangeListNoThrow(lastRange, inst.getAddr(), inst.getSize(), false);
+				if (++this.instIndex < range.getInstructionCount()) {
+					InstructionInfo inst = range.getInstruction(this.instIndex);
+					
+					this.addr = inst.getAddr();
+					this.size = inst.getSize();
+					this.density = inst.getDensity();
+					return true;
+				}
 				
+				this.rangeIndex++;
+				this.instIndex=-1;
 			}
-			else
-				rightKeyset.remove(key);
 			
+			return false;
 		}
 		
-		for (Long key : rightKeyset) {
-			inst = covData2.lookupAddressMapSingle(key);
-			lastRange = distinctResult.pushRangeListNoThrow(lastRange, inst.getAddr(), inst.getSize(), false);
+		private boolean nextInterleaved(List<CodeRange> ranges) {
+			RangeCursor cursor;
+			InstructionInfo inst;
+			CodeRange range;
+			
+			//ranges are sorted by their start. join the ones that start before the lowest pending instruction
+			while (this.rangeIndex < ranges.size()) {
+				range = ranges.get(this.rangeIndex);
+				
+				if (!this.cursors.isEmpty() && range.getRangeStart() > this.cursors.peek().addr)
+					break;
+				
+				if (range.getInstructionCount() > 0)
+					this.cursors.add(new RangeCursor(range));
+				
+				this.rangeIndex++;
+			}
+			
+			cursor = this.cursors.poll();
+			
+			if (cursor == null)
+				return false;
+			
+			inst = cursor.range.getInstruction(cursor.index);
+			
+			this.addr = inst.getAddr();
+			this.size = inst.getSize();
+			this.density = inst.getDensity();
+			
+			if (cursor.advance())
+				this.cursors.add(cursor);
+			
+			while (!this.cursors.isEmpty() && this.cursors.peek().addr == this.addr) {
+				cursor = this.cursors.poll();
+				this.density += cursor.range.getInstruction(cursor.index).getDensity();
+				
+				if (cursor.advance())
+					this.cursors.add(cursor);
+			}
+			
+			return true;
 		}
-		
-		distinctResult.merge();
-		
-		return distinctResult;
 	}
 	
-	public static CoverageData sum(CoverageData covData1, CoverageData covData2) {
-		CoverageData sumResult = CoverageData.newLogical();
-		CodeRange lastRange=null;
-		InstructionInfo inst=null;
+	/*
+	 * Merges the instruction streams of the all inputs at once (k-way merge)
+	 * and keeps the instructions covered by the result bitmap.
+	 * Hit counts of the same instruction are summed up.
+	 */
+	private static CoverageData combine(CoverageBitmap resultBitmap, CoverageData[] covDataList, boolean densityPreserved) {
+		PriorityQueue<InstructionStream> queue;
+		InstructionHitTable hits;
+		InstructionStream stream;
+		CoverageData result;
+		long imgBase,addr;
+		int size,density;
 		
+		result = new CoverageData(null, covDataList[0].program);
+		result.ownerSession = covDataList[0].ownerSession;
+		result.bitmap = resultBitmap;
+		result.densityPreserved = densityPreserved;
 		
+		queue = new PriorityQueue<InstructionStream>(covDataList.length, 
+				(s1,s2) -> Long.compare(s1.addr, s2.addr));
 		
-		for (List<InstructionInfo> list : covData1.addressMap.values()) {
-			inst = list.get(0);
+		for (CoverageData cov : covDataList) {
+			stream = new InstructionStream(cov);
 			
-			if (inst != null)
-				lastRange = sumResult.pushRangeListNoThrow(lastRange, inst.getAddr(), inst.getSize(), false);
+			if (stream.next())
+				queue.add(stream);
 		}
 		
+		imgBase = result.program.getImageBase();
+		hits = new InstructionHitTable();
+		
+		while (!queue.isEmpty()) {
+			stream = queue.poll();
+			
+			addr = stream.addr;
+			size = stream.size;
+			density = stream.density;
+			
+			if (stream.next())
+				queue.add(stream);
+			
+			//collect the same instruction from the other streams
+			while (!queue.isEmpty() && queue.peek().addr == addr) {
+				stream = queue.poll();
+				density += stream.density;
+				
+				if (stream.next())
+					queue.add(stream);
+			}
+			
+			if (resultBitmap.contains(addr - imgBase)) {
+				hits.add(addr, size, density);
+				result.setMaxDensity(density);
+			}
+		}
 		
-		for (List<InstructionInfo> list : covData2.addressMap.values()) {
-			inst = list.get(0);
+		if (!hits.isOrdered()) {
+			//an input went backwards. sort the result and sum the split up hits of the same instruction
+			Log.info("combine: unordered instruction stream, result is sorted");
 			
-			if (inst != null)
-				lastRange = sumResult.pushRangeListNoThrow(lastRange, inst.getAddr(), inst.getSize(), false);
+			hits.normalize();
 			
+			for (int i=0;i<hits.size();i++)
+				result.setMaxDensity(hits.getDensity(i));
 		}
 		
-		sumResult.merge();
+		//code ranges of the logical coverage are materialized when they are needed
+		result.hitTable = hits;
 		
-		return sumResult;
+		return result;
+	}
+	
+	public static CoverageData intersect(CoverageData covData1, CoverageData covData2) {
+		return intersect(new CoverageData[] {covData1, covData2});
+	}
+	
+	public static CoverageData difference(CoverageData covData1, CoverageData covData2) {
+		return difference(new CoverageData[] {covData1, covData2});
+	}
+	
+	public static CoverageData distinct(CoverageData covData1, CoverageData covData2) {
+		return distinct(new CoverageData[] {covData1, covData2});
+	}
+	
+	public static CoverageData sum(CoverageData covData1, CoverageData covData2) {
+		return sum(new CoverageData[] {covData1, covData2});
 	}
 	
 	public static CoverageData and(CoverageData ...covDataList) {
@@ -177,73 +341,89 @@ public class CoverageData implements AutoCloseable {
 		return distinct(covDataList);
 	}
 	
+	private static CoverageBitmap[] getBitmaps(CoverageData[] covDataList, int from) {
+		CoverageBitmap[] bitmaps = new CoverageBitmap[covDataList.length - from];
+		
+		for (int i=from;i<covDataList.length;i++) {
+			bitmaps[i - from] = covDataList[i].getBitmap();
+		}
+		
+		return bitmaps;
+	}
 	
 	public static CoverageData intersect(CoverageData ...covDataList) {
-		CoverageData result;
 		
 		if (covDataList.length < 2)
 			return null;
 		
-		result = intersect(covDataList[0],covDataList[1]);
-		
-		for (int i=2;i<covDataList.length;i++) {
-			result = intersect(result,covDataList[i]);
-		}
-		
-		
-		return result;
+		return combine(CoverageBitmap.and(getBitmaps(covDataList,0)), covDataList, false);
 	}
 	
 	public static CoverageData difference(CoverageData ...covDataList) {
-		CoverageData result;
+		CoverageBitmap bm;
 		
 		if (covDataList.length < 2)
 			return null;
 		
-		result = difference(covDataList[0],covDataList[1]);
+		bm = CoverageBitmap.andNot(covDataList[0].getBitmap(), getBitmaps(covDataList,1));
 		
-		for (int i=2;i<covDataList.length;i++) {
-			result = difference(result,covDataList[i]);
-		}
-		
-		
-		return result;
+		//only the first coverage contributes to the difference
+		return combine(bm, new CoverageData[] {covDataList[0]}, false);
 	}
 	
 	public static CoverageData sum(CoverageData ...covDataList) {
-		CoverageData result;
 		
 		if (covDataList.length < 2)
 			return null;
 		
-		result = sum(covDataList[0],covDataList[1]);
-		
-		for (int i=2;i<covDataList.length;i++) {
-			result = sum(result,covDataList[i]);
-		}
-		
+		return combine(CoverageBitmap.or(getBitmaps(covDataList,0)), covDataList, true);
+	}
+	
+	/*
+	 * Same as sum but a single coverage is accepted too. The result does not refer
+	 * to the inputs, so they can be closed right after. Used to fold a stream of coverages
+	 * into an aggregated one.
+	 */
+	public static CoverageData accumulate(CoverageData ...covDataList) {
+		
+		if (covDataList.length < 1)
+			return null;
 		
-		return result;
+		return combine(CoverageBitmap.or(getBitmaps(covDataList,0)), covDataList, true);
 	}
 	
+	/*
+	 * Instructions covered by an odd number of the coverages.
+	 */
 	public static CoverageData distinct(CoverageData ...covDataList) {
-		CoverageData result;
 		
 		if (covDataList.length < 2)
 			return null;
 		
-		result = distinct(covDataList[0],covDataList[1]);
-		
-		for (int i=2;i<covDataList.length;i++) {
-			result = distinct(result,covDataList[i]);
-		}
-		
-		
-		return result;
+		return combine(CoverageBitmap.xor(getBitmaps(covDataList,0)), covDataList, false);
+	}
+	
+	/*
+	 * Instructions of the coverage that are also covered by the mask.
+	 * Densities come from the coverage only.
+	 */
+	public static CoverageData restrict(CoverageData coverage, CoverageData mask) {
+		CoverageBitmap bm = CoverageBitmap.and(coverage.getBitmap(), mask.getBitmap());
+		
+		return combine(bm, new CoverageData[] {coverage}, false);
 	}
 	
-	private void merge() {
-		CodeRange range;
+	private static void checkCancelled(TaskMonitor monitor, int iteration) throws OperationAbortedException {
+		if ((iteration & CANCEL_CHECK_MASK) == 0 && monitor.isCancelled())
+			throw new OperationAbortedException("cancelled");
+	}
+	
+	private void merge(TaskMonitor monitor) throws OperationAbortedException {
+		List<CodeRange> mergedList;
+		CodeRange head=null;
+		boolean ordered=true;
+		long beginTime;
+		int iteration=0;
 		
 		if (this.isLogicalCoverageData()) {
 			//Merging operation only needed after raw coverage data read from the coverage file.
@@ -252,52 +432,86 @@ public class CoverageData implements AutoCloseable {
 		
 		Log.info("rangeList: %d", this.rangeList.size());
 		
-		for (int i=0;i<this.rangeList.size();i++) {
-			for (int j=0;j<this.rangeList.size();j++) {
-				if (i != j) {
-					if (this.rangeList.get(i).mergeFrom(
-							this.rangeList.get(j) )) {
-						
-						this.mergedRangeCount++;
-						
-						range = this.rangeList.remove(j);
-						range.unmapFromAddressMap();
-						
-						if (i >= j)
-							i--;
-						
-						if (j > 0)
-							j--;
-						
-					}
-				}
+		beginTime = System.nanoTime();
+		
+		/*
+		 * Sort the ranges by their start address then sweep them once.
+		 * A range can only be merged into the sweep head because every range
+		 * before the head has already ended before the head starts.
+		 */
+		this.rangeList.sort(rangeListComparator);
+		
+		mergedList = new ArrayList<CodeRange>(this.rangeList.size());
+		
+		for (CodeRange range : this.rangeList) {
+			
+			checkCancelled(monitor, iteration++);
+			
+			if (head == null) {
+				head = range;
+				continue;
+			}
+			
+			if (range.getRangeStart() <= head.getRangeEnd() && head.mergeFrom(range)) {
+				this.mergedRangeCount++;
+				
+				if (this.addressMap != null)
+					range.unmapFromAddressMap();
+				
+				continue;
+			}
+			
+			if (range.getRangeEnd() <= head.getRangeEnd()) {
+				//could not be merged but it lies inside the head. keep sweeping with the head
+				mergedList.add(range);
+				ordered=false;
+			}
+			else {
+				mergedList.add(head);
+				head = range;
 			}
 		}
-	}
-	
-	private InstructionInfo lookupAddressMapSingle(long addrKey) {
-		
-		List<InstructionInfo> list = null;
 		
-		if (!this.addressMap.containsKey(addrKey))
-			return null;
+		if (head != null)
+			mergedList.add(head);
 		
-		list = this.addressMap.get(addrKey);
+		if (!ordered)
+			mergedList.sort(rangeListComparator);
 		
-		if (list.size()>0)
-			return list.get(0);
+		this.rangeList = mergedList;
+		this.sorted = true;
+		this.interleaved = hasInterleavedRanges(mergedList);
 		
-		return null;
+		Log.info("%d ranges merged into %d ranges in %d ms", 
+				this.initialRangeCount, this.rangeList.size(), 
+				(System.nanoTime() - beginTime) / 1000000);
 	}
 	
-	private CodeRange pushRangeListNoThrow(CodeRange codeRange, long addr, int size, boolean isSequence) {
-		try {
-			return pushRangeList(codeRange, addr, size,isSequence);
-		} catch (InvalidInstructionAddress | OperationAbortedException e) {
-			Log.println("pushRangeList (%s)", e.getMessage());
+	/*
+	 * Unmergeable ranges (misaligned or overlapping decodes) are kept as they are.
+	 * Checks whether an instruction of a range comes after an instruction of a later range.
+	 */
+	private static boolean hasInterleavedRanges(List<CodeRange> ranges) {
+		long lastAddr=Long.MIN_VALUE;
+		long addr;
+		int count;
+		
+		for (CodeRange range : ranges) {
+			count = range.getInstructionCount();
+			
+			if (count == 0)
+				continue;
+			
+			if (range.getInstruction(0).getAddr() <= lastAddr)
+				return true;
+			
+			addr = range.getInstruction(count - 1).getAddr();
+			
+			if (addr > lastAddr)
+				lastAddr = addr;
 		}
 		
-		return null;
+		return false;
 	}
 	
 	private CodeRange pushRangeList(CodeRange codeRange, long addr, int size, boolean isSequence) throws InvalidInstructionAddress, OperationAbortedException {
@@ -317,20 +531,27 @@ public class CoverageData implements AutoCloseable {
 		return codeRange;
 	}
 	
-	private void buildRanges() throws InvalidInstructionAddress, OperationAbortedException {
+	private void buildRanges(TaskMonitor monitor) throws InvalidInstructionAddress, OperationAbortedException {
 		long imgBase,addr;
 		CodeRange codeRange = null;
+		int iteration=0;
 		
 		this.rangeList = new ArrayList<CodeRange>();
 		
-		imgBase = DragonHelper.getImageBase().getOffset();
+		imgBase = this.program.getImageBase();
 		
 		Log.info("Generating initial code ranges. Total block entry: %d",source.entries.size());
 		
-		for (BlockEntry be : source.entries) {
+		BlockEntryTable.Cursor entry = source.entries.cursor();
+		
+		monitor.setMessage(String.format("Building code ranges of %s", getName()));
+		
+		while (entry.next()) {
 			
-			addr = imgBase + be.getOffset();
-			codeRange = pushRangeList(codeRange, addr,be.getSize(),true);
+			checkCancelled(monitor, iteration++);
+			
+			addr = imgBase + entry.getOffset();
+			codeRange = pushRangeList(codeRange, addr,entry.getSize(),true);
 		}
 		
 		this.initialRangeCount = this.rangeList.size();
@@ -338,13 +559,125 @@ public class CoverageData implements AutoCloseable {
 		Log.info("%d ranges generated.", this.rangeList.size());
 		Log.info("trying to merge ranges");
 		
-		merge();
+		monitor.incrementProgress(1);
+		monitor.setMessage(String.format("Merging code ranges of %s", getName()));
+		
+		merge(monitor);
+		
+		monitor.incrementProgress(1);
 		
 		Log.info("final code range size: %d, %d range merged", this.rangeList.size(),this.mergedRangeCount);
 		
 	}
 	
+	/*
+	 * Builds the code ranges of a logical coverage from its instruction hit table.
+	 * Instructions are already known so there is no instruction decoding.
+	 */
+	private boolean materialize() {
+		
+		if (this.rangeList != null)
+			return true;
+		
+		if (this.hitTable == null)
+			return false;
+		
+		buildRangesFromTable(this.hitTable);
+		
+		this.initialRangeCount = this.rangeList.size();
+		
+		return true;
+	}
+	
+	private void buildRangesFromTable(InstructionHitTable table) {
+		CodeRange range=null;
+		long addr;
+		int size,density;
+		
+		table.normalize();
+		
+		this.rangeList = new ArrayList<CodeRange>();
+		
+		for (int i=0;i<table.size();i++) {
+			addr = table.getAddr(i);
+			size = table.getSize(i);
+			density = table.getDensity(i);
+			
+			if (range != null && range.appendInstruction(addr, size, density))
+				continue;
+			
+			try {
+				range = CodeRange.fromInstruction(this, addr, size, density, this.addressMap);
+				this.rangeList.add(range);
+			} catch (InvalidInstructionAddress | OperationAbortedException e) {
+				Log.println("buildRangesFromTable (%s)", e.getMessage());
+			}
+		}
+		
+		this.sorted = true;
+		this.interleaved = false;
+	}
+	
+	/*
+	 * Returns the covered instructions and their hit counts in the address order.
+	 */
+	public InstructionHitTable getInstructionTable() {
+		InstructionHitTable table;
+		InstructionStream stream;
+		
+		if (this.hitTable != null)
+			return this.hitTable;
+		
+		table = new InstructionHitTable();
+		stream = new InstructionStream(this);
+		
+		while (stream.next()) {
+			table.add(stream.addr, stream.size, stream.density);
+		}
+		
+		table.normalize();
+		
+		return table;
+	}
+	
+	/*
+	 * Returns the covered instructions as a bitmap of their image base relative start offsets.
+	 * Set operations are keyed by the instruction address, so only the start of an instruction is set.
+	 */
+	public CoverageBitmap getBitmap() {
+		CoverageBitmap bm;
+		InstructionStream stream;
+		long imgBase;
+		
+		if (this.bitmap != null)
+			return this.bitmap;
+		
+		bm = new CoverageBitmap();
+		
+		if (this.rangeList == null)
+			return bm;
+		
+		imgBase = this.program.getImageBase();
+		stream = new InstructionStream(this);
+		
+		while (stream.next()) {
+			bm.add(stream.addr - imgBase);
+		}
+		
+		this.bitmap = bm;
+		
+		return bm;
+	}
+	
 	public boolean build() throws InvalidInstructionAddress, OperationAbortedException {
+		return build(TaskMonitor.DUMMY);
+	}
+	
+	/*
+	 * Builds and merges the code ranges. Each of the both stages increments
+	 * the progress of the monitor by one. Throws OperationAbortedException if it's cancelled.
+	 */
+	public boolean build(TaskMonitor monitor) throws InvalidInstructionAddress, OperationAbortedException {
 		
 		if (this.rangeList != null)
 			return true;
@@ -355,7 +688,36 @@ public class CoverageData implements AutoCloseable {
 		if (!this.source.isProcessed())
 			return false;
 		
-		this.buildRanges();
+		InstructionHitTable prebuilt = this.source.getInstructionTable();
+		
+		if (prebuilt != null) {
+			//ranges were already built and merged when the coverage was stored
+			buildRangesFromTable(prebuilt);
+			
+			if (this.source instanceof CommonDatabaseDataSource) {
+				this.initialRangeCount = ((CommonDatabaseDataSource)this.source).getInitialRangeCount();
+				this.mergedRangeCount = ((CommonDatabaseDataSource)this.source).getMergedRangeCount();
+			}
+			
+			monitor.incrementProgress(2);
+		}
+		else {
+			try {
+				this.buildRanges(monitor);
+			}
+			catch (OperationAbortedException e) {
+				this.rangeList = null;
+				throw e;
+			}
+		}
+		
+		//raw entries are not needed anymore. release them to keep the memory bounded
+		this.source.releaseEntries();
+		
+		buildFunctionIndex();
+		
+		if (this.source.getCacheKey() != null)
+			TraceCache.store(this.source.getCacheKey(), this.program.getExecutableMD5(), this);
 		
 		if (Globals.DumpInstructions) {
 			boolean pv,pd;
@@ -370,23 +732,74 @@ public class CoverageData implements AutoCloseable {
 		return true;
 	}
 	
+	/*
+	 * Attributes the covered instructions to the functions of the program
+	 * by sweeping the both of them in the address order once.
+	 */
+	private FunctionCoverageIndex buildFunctionIndex() {
+		FunctionTable functions = this.program.getFunctionTable();
+		FunctionCoverageIndex index;
+		InstructionStream stream;
+		long beginTime;
+		
+		if (functions == null)
+			return null;
+		
+		beginTime = System.nanoTime();
+		
+		index = new FunctionCoverageIndex(functions);
+		stream = new InstructionStream(this);
+		
+		while (stream.next()) {
+			index.add(stream.addr, stream.density);
+		}
+		
+		Log.info("%d of %d functions covered, indexed in %d ms", index.getCoveredFunctionCount(),
+				index.getFunctionCount(), (System.nanoTime() - beginTime) / 1000000);
+		
+		this.functionIndex = index;
+		
+		return index;
+	}
+	
+	/*
+	 * Returns the per function coverage of the coverage, null if the program view
+	 * does not know the functions. It is rebuilt if the functions of the program changed.
+	 */
+	public synchronized FunctionCoverageIndex getFunctionIndex() {
+		FunctionCoverageIndex index = this.functionIndex;
+		
+		if (index != null && index.getFunctionTable() == this.program.getFunctionTable())
+			return index;
+		
+		if (this.rangeList == null && this.hitTable == null)
+			return null;
+		
+		return buildFunctionIndex();
+	}
+	
 	public void dump() {
+		
+		if (!materialize())
+			return;
+		
 		for (CodeRange range : this.rangeList) {
 			range.dumpInstructionDensityList();
 		}
 	}
 	
 	public void dumpHashMap() {
-		List<InstructionInfo> listValue;
+		InstructionAddressMap map = this.addressMap;
 		
-		for (Long key : this.addressMap.keySet())
+		if (map == null)
+			return;
+		
+		for (int slot = map.nextSlot(-1); slot != -1; slot = map.nextSlot(slot))
 		{
-			listValue = this.addressMap.get(key);
-			
-			Log.debug("Key: %x | ",key);
+			Log.debug("Key: %x | ",map.keyAt(slot));
 			Log.debug("Value(s): ");
 			
-			for (InstructionInfo ii : listValue) {
+			for (InstructionInfo ii : map.getAll(map.keyAt(slot))) {
 				if (ii.getOwnerCodeRange().getContainerCoverage() == this) {
 					Log.debug("%x (density: %d)," , ii.hashCode(), ii.getDensity());
 				}
@@ -397,41 +810,291 @@ public class CoverageData implements AutoCloseable {
 	}
 	
 	public void paint(Painter painter) {
+		paint(painter,null);
+	}
+	
+	/*
+	 * Paints the coverage over the paint of the previous coverage.
+	 * Only the addresses whose color changed are touched.
+	 * Huge coverages are painted around the current view first and the rest
+	 * is painted in the background.
+	 */
+	public void paint(Painter painter, CoverageData previous) {
+		ColorRunList runs,previousRuns=null;
+		InstructionStream stream;
+		boolean lazy;
+		int instCount=0;
+		int generation;
+		
+		synchronized (this.paintLock) {
+			if (this.visualized)
+				return;
+		}
 		
-		if (this.visualized)
+		if (!materialize())
 			return;
 		
-		boolean failed=false;
+		runs = new ColorRunList();
+		stream = new InstructionStream(this);
 		
-		int transId = DragonHelper.startTransaction("BgPaint");
+		while (stream.next()) {
+			runs.add(stream.addr, stream.size, painter.getColor(stream.density));
+			instCount++;
+		}
 		
-		for (CodeRange range : this.rangeList) {
-			if (!range.paintRange(painter)) {
-				failed=true;
-				break;
+		lazy = instCount > Globals.LazyPaintInstructionThreshold;
+		
+		if (previous != null && previous != this) {
+			
+			//the previous paint can be diffed only if it is completely applied
+			if (!lazy)
+				previousRuns = previous.takePaint();
+			
+			if (previousRuns == null)
+				previous.clearPaint();
+		}
+		
+		synchronized (this.applyLock) {
+			
+			synchronized (this.paintLock) {
+				this.colorRuns = runs;
+				this.paintedRuns = lazy ? new BitSet(runs.size()) : null;
+				this.requestedRegion = lazy && this.ownerSession != null ? this.ownerSession.getViewRange() : null;
+				this.paintCursor = 0;
+				this.paintGeneration++;
+				this.visualized=true;
+				
+				generation = this.paintGeneration;
 			}
+			
+			if (!lazy) {
+				PaintBatch batch = new PaintBatch();
+				
+				if (previousRuns != null)
+					runs.diffInto(previousRuns, batch);
+				else
+					runs.paintInto(batch);
+				
+				if (!applyBatch(batch, "BgPaint")) {
+					
+					synchronized (this.paintLock) {
+						this.colorRuns = null;
+						this.paintGeneration++;
+						this.visualized=false;
+					}
+					
+					//transaction is rolled back. the listing still shows the previous paint
+					if (previousRuns != null)
+						previous.restorePaint(previousRuns);
+					
+					return;
+				}
+			}
+		}
+		
+		if (lazy) {
+			DragonHelper.queuePoolWorkItem(() -> {
+				paintRemaining(generation);
+			});
 		}
+	}
+	
+	private static boolean applyBatch(PaintBatch batch, String name) {
+		boolean failed;
+		
+		int transId = DragonHelper.startTransaction(name);
+		
+		failed = !batch.apply();
 		
 		DragonHelper.finishTransaction(transId,!failed);
 		
-		if (!failed)
+		return !failed;
+	}
+	
+	/*
+	 * Hands the paint of the coverage over to the next coverage, so it is diffed
+	 * instead of being cleared. Returns null if the paint is not completely applied.
+	 */
+	private ColorRunList takePaint() {
+		ColorRunList runs;
+		
+		synchronized (this.applyLock) {
+			synchronized (this.paintLock) {
+				
+				if (!this.visualized || this.paintedRuns != null)
+					return null;
+				
+				runs = this.colorRuns;
+				
+				this.colorRuns = null;
+				this.paintGeneration++;
+				this.visualized=false;
+				
+				return runs;
+			}
+		}
+	}
+	
+	private void restorePaint(ColorRunList runs) {
+		synchronized (this.paintLock) {
+			
+			if (this.visualized)
+				return;
+			
+			this.colorRuns = runs;
+			this.paintedRuns = null;
+			this.paintGeneration++;
 			this.visualized=true;
+		}
 	}
 	
-	public void clearPaint() {
-		
-		if (!this.visualized)
-			return;
+	/*
+	 * Requests the not yet painted runs between the start and the end addresses
+	 * and their neighbors in the prefetch distance to be painted first.
+	 * The background painter applies them, so the caller (swing thread) never waits for it.
+	 */
+	public void paintRegion(long start, long end) {
+		synchronized (this.paintLock) {
+			
+			if (!this.visualized || this.paintedRuns == null)
+				return;
+			
+			this.requestedRegion = new long[] {start, end};
+		}
+	}
+	
+	/*
+	 * Marks the next pending runs as painted and collects them into the batch.
+	 * Runs of the requested view region go first. Must be called with the paintLock.
+	 * Returns the [from,to) of the collected runs or null if there is nothing left.
+	 */
+	private int[] collectPendingRuns(PaintBatch batch) {
+		long[] region = this.requestedRegion;
+		int fromIndex=-1,toIndex=0;
+		
+		this.requestedRegion = null;
+		
+		if (region != null) {
+			fromIndex = this.colorRuns.findIndex(region[0] - Globals.LazyPaintPrefetchSize);
+			toIndex = this.colorRuns.findIndex(region[1] + Globals.LazyPaintPrefetchSize);
+			
+			if (toIndex < this.colorRuns.size() && 
+					this.colorRuns.getStart(toIndex) < region[1] + Globals.LazyPaintPrefetchSize)
+				toIndex++;
+			
+			fromIndex = this.paintedRuns.nextClearBit(fromIndex);
+			
+			if (fromIndex >= toIndex)
+				fromIndex = -1;
+		}
 		
-		int transId = DragonHelper.startTransaction("ClearBgPaint");
+		if (fromIndex < 0) {
+			fromIndex = this.paintedRuns.nextClearBit(this.paintCursor);
+			
+			if (fromIndex >= this.colorRuns.size())
+				return null;
+			
+			toIndex = Math.min(fromIndex + LAZY_PAINT_RUNS_PER_STEP, this.colorRuns.size());
+			
+			this.paintCursor = toIndex;
+		}
 		
-		for (CodeRange range : this.rangeList) {
-			range.clearPaint();
+		for (int i=fromIndex;i < toIndex; i++) {
+			if (!this.paintedRuns.get(i))
+				this.colorRuns.paintRunInto(batch, i);
 		}
 		
-		DragonHelper.finishTransaction(transId, true);
+		this.paintedRuns.set(fromIndex, toIndex);
+		
+		return new int[] {fromIndex, toIndex};
+	}
+	
+	private void paintRemaining(int generation) {
+		Thread thread = Thread.currentThread();
+		int oldPriority = thread.getPriority();
+		PaintBatch batch;
+		int[] step;
+		
+		thread.setPriority(Thread.MIN_PRIORITY);
 		
-		this.visualized=false;
+		try {
+			while (true) {
+				synchronized (this.applyLock) {
+					
+					batch = new PaintBatch();
+					
+					synchronized (this.paintLock) {
+						
+						//coverage was cleared or repainted in the meantime
+						if (generation != this.paintGeneration || this.paintedRuns == null)
+							return;
+						
+						step = collectPendingRuns(batch);
+						
+						if (step == null) {
+							this.paintedRuns = null;
+							Log.info("background painting completed");
+							return;
+						}
+					}
+					
+					if (!applyBatch(batch, "BgPaint")) {
+						synchronized (this.paintLock) {
+							if (generation == this.paintGeneration && this.paintedRuns != null) {
+								this.paintedRuns.clear(step[0], step[1]);
+								this.paintCursor = Math.min(this.paintCursor, step[0]);
+							}
+						}
+						
+						return;
+					}
+				}
+				
+				Thread.yield();
+			}
+		}
+		finally {
+			thread.setPriority(oldPriority);
+		}
+	}
+	
+	public void clearPaint() {
+		PaintBatch batch = new PaintBatch();
+		
+		synchronized (this.applyLock) {
+			
+			synchronized (this.paintLock) {
+				
+				if (!this.visualized)
+					return;
+				
+				if (this.paintedRuns == null) {
+					this.colorRuns.clearInto(batch);
+				}
+				else {
+					//lazy painted coverage may not be painted completely
+					for (int i = this.paintedRuns.nextSetBit(0); i >= 0; i = this.paintedRuns.nextSetBit(i + 1)) {
+						this.colorRuns.clearRunInto(batch, i);
+					}
+				}
+				
+				this.colorRuns = null;
+				this.paintedRuns = null;
+				this.requestedRegion = null;
+				this.paintGeneration++;
+				this.visualized=false;
+			}
+			
+			int transId = DragonHelper.startTransaction("ClearBgPaint");
+			
+			batch.apply();
+			
+			DragonHelper.finishTransaction(transId, true);
+		}
+	}
+	
+	public final ProgramView getProgramView() {
+		return this.program;
 	}
 	
 	public CoverageDataSource getSource() {
@@ -465,7 +1128,7 @@ public class CoverageData implements AutoCloseable {
 		
 		this.inClose = true;
 		
-		if (this.ownerSession.isActiveCoverage(this)) {
+		if (this.ownerSession != null && this.ownerSession.isActiveCoverage(this)) {
 			this.ownerSession.setActiveCoverage(null);
 		}
 		
@@ -477,6 +1140,10 @@ public class CoverageData implements AutoCloseable {
 		if (this.addressMap != null)
 			this.addressMap.clear();
 		
+		this.bitmap = null;
+		this.hitTable = null;
+		this.functionIndex = null;
+		
 		if (!isLogicalCoverageData())
 			this.source.close();
 		
@@ -495,7 +1162,7 @@ public class CoverageData implements AutoCloseable {
 	
 	public final int getRangeCount() {
 		
-		if (this.rangeList==null)
+		if (this.rangeList==null && !materialize())
 			return 0;
 		
 		return this.rangeList.size();
@@ -510,7 +1177,7 @@ public class CoverageData implements AutoCloseable {
 	}
 	
 	public void sort() {
-		if (!this.sorted) {
+		if (!this.sorted && this.rangeList != null) {
 			this.rangeList.sort(rangeListComparator);
 			this.sorted=true;
 		}
@@ -535,4 +1202,11 @@ public class CoverageData implements AutoCloseable {
 	public final boolean isLogicalCoverageData() {
 		return this.source == null;
 	}
+	
+	/*
+	 * Logical coverages built by sum keep the summed hit counts of the inputs
+	 */
+	public final boolean isDensityPreserved() {
+		return this.densityPreserved;
+	}
 }
@@ -1,46 +1,77 @@
 package dragondance.datasource;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import dragondance.Log;
+import dragondance.eng.InstructionHitTable;
 import dragondance.util.Util;
-
-enum ByteMapTypes
-{
-	Uint32,
-	UShort
-}
+import ghidra.util.task.TaskMonitor;
 
 public class CoverageDataSource implements AutoCloseable{
 	
 	public static final int SOURCE_TYPE_DYNA = 0;
 	public static final int SOURCE_TYPE_PINTOOL = 1;
+	public static final int SOURCE_TYPE_DDCOV = 2;
+	
+	//size of the fixed width basic block records (drcov and ddph)
+	protected static final int ENTRY_SIZE = 8;
+	protected static final int ENTRY_SIZE_EXTENDED = 12;
+	
+	//file regions are mapped into the memory through this size of windows
+	private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+	
+	//tables smaller than two slices of this size are decoded on the calling thread
+	private static final long MIN_DECODE_SLICE_ENTRIES = 1L << 20;
 	
+	private static final long NEWLINE_PATTERN = 0x0A0A0A0A0A0A0A0AL;
 	
 	protected int moduleCount=0;
 	protected int entryTableSize=0;
 	
 	protected List<ModuleInfo> modules;
-	protected List<BlockEntry> entries;
+	protected BlockEntryTable entries;
 	
 	protected String mainModuleName = null;
 	protected ModuleInfo mainModule = null;
 	
+	//bitmap of the accepted module ids. null means all modules are accepted
+	private long[] moduleFilter = null;
+	
 	protected boolean isEof = false;
 	protected boolean processed = false;
-	private FileInputStream fis = null;
+	
+	//counts that are kept after the tables are released or restored from a session database
+	protected int readedEntryCount=-1;
+	protected int readedModuleCount=-1;
+	
+	//header lines are read through it
+	protected LineFields lineFields = new LineFields();
+	
+	private FileChannel channel = null;
 	private ByteBuffer buf = null;
+	private long bufFilePos = 0;
+	private long fileSize = 0;
 	private String filePath;
 	private int id = 0;
 	private int type=-1;
 	private String name;
 	
+	//trace cache key of the source. the built coverage is stored under it
+	private String cacheKey = null;
+	
+	//monitor of the running process call. decoding stops when it's cancelled
+	private volatile TaskMonitor monitor = TaskMonitor.DUMMY;
+	
 	public CoverageDataSource(String sourceFile, String mainModule,int type) throws FileNotFoundException {
 		this.mainModuleName=mainModule;
 		this.type=type;
@@ -53,16 +84,39 @@ public class CoverageDataSource implements AutoCloseable{
 		this.filePath = sourceFile;
 		this.name = Util.getObjectNameFromPath(sourceFile);
 		
-		this.fis = new FileInputStream(file);
-		this.buf = ByteBuffer.allocate(1 * 1024 * 1024);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		this.channel = raf.getChannel();
+		
+		try {
+			this.fileSize = this.channel.size();
+		} catch (IOException e) {
+			Log.println(e.getMessage());
+		}
+		
+		this.buf = ByteBuffer.allocate(0);
 		
 		this.modules = new ArrayList<ModuleInfo>();
-		this.entries = new ArrayList<BlockEntry>();
+		this.entries = new BlockEntryTable();
 		
-		readIntoBuffer();
+		mapRegion(0, MAP_WINDOW_SIZE);
 		
 	}
 	
+	/*
+	 * Source of an already built coverage (e.g. a session database record).
+	 * The file is not opened, its content is supplied by the subclass.
+	 */
+	protected CoverageDataSource(String sourceFile, int type) {
+		this.type = type;
+		this.filePath = sourceFile;
+		this.name = Util.getObjectNameFromPath(sourceFile);
+		
+		this.modules = new ArrayList<ModuleInfo>();
+		this.entries = new BlockEntryTable();
+		this.isEof = true;
+	}
+	
 	public static int detectCoverageDataFileType(String file) throws FileNotFoundException {
 		CoverageDataSource cds;
 		int type = -1;
@@ -71,10 +125,15 @@ public class CoverageDataSource implements AutoCloseable{
 		
 		String s = cds.readLine();
 		
+		if (s == null)
+			s = "";
+		
 		if (s.startsWith("DDPH-PINTOOL"))
 			type = SOURCE_TYPE_PINTOOL;
 		else if (s.startsWith("DRCOV VERSION:"))
 			type = SOURCE_TYPE_DYNA;
+		else if (s.startsWith(DragonDanceDataSource.SIGNATURE))
+			type = SOURCE_TYPE_DDCOV;
 		
 		
 		try {
@@ -84,78 +143,112 @@ public class CoverageDataSource implements AutoCloseable{
 		return type;
 	}
 	
-	private boolean readIntoBuffer() {
+	private boolean mapRegion(long filePos, long length) {
 		
-		this.buf.clear();
-		int readLen=0;
-		
-		if (this.isEof)
+		if (filePos >= this.fileSize) {
+			this.isEof=true;
 			return false;
+		}
+		
+		if (length > this.fileSize - filePos)
+			length = this.fileSize - filePos;
 		
 		try {
-			readLen = this.fis.read(this.buf.array(), 0, this.buf.capacity());
-			
-			if (readLen == -1) {
-				this.isEof=true;
-				this.fis.close();
-				return false;
-			}
-			
-			this.buf.limit(readLen);
-			
+			this.buf = this.channel.map(FileChannel.MapMode.READ_ONLY, filePos, length);
 		} catch (IOException e) {
 			Log.println(e.getMessage());
 			return false;
 		}
 		
+		//drcov and ddph both write their tables in little endian
+		this.buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.bufFilePos = filePos;
+		
 		return true;
 	}
 	
-	private byte readByte() {
-		byte b;
+	protected final long getReadPosition() {
+		return this.bufFilePos + this.buf.position();
+	}
+	
+	protected final long getFileSize() {
+		return this.fileSize;
+	}
+	
+	/*
+	 * Maps a region of the file without touching the read position
+	 */
+	protected final ByteBuffer mapFileRegion(long filePos, long length) throws IOException {
+		ByteBuffer region = this.channel.map(FileChannel.MapMode.READ_ONLY, filePos, length);
 		
-		if (this.buf.hasRemaining())
-			b = this.buf.get();
-		else {
-			
-			if (!readIntoBuffer())
-				return -1;
-			
-			b = this.buf.get();
-		}
+		region.order(ByteOrder.LITTLE_ENDIAN);
 		
-		return b;
+		return region;
 	}
 	
-	private int readBytes(byte[] rbuf, int bufOffset, int len) {
-		
-		int readLen=0;
+	/*
+	 * Returns the position of the first \n in the [from,limit) of the buffer or -1.
+	 * Eight bytes are tested at once (buffer is little endian, so the lowest
+	 * matching byte is the first one).
+	 */
+	private int indexOfNewline(int from, int limit) {
+		long x,found;
+		int i=from;
+		
+		if (this.buf.order() == ByteOrder.LITTLE_ENDIAN) {
+			for (;i + 8 <= limit;i+=8) {
+				x = this.buf.getLong(i) ^ NEWLINE_PATTERN;
+				found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+				
+				if (found != 0)
+					return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
 		
-		if (!this.buf.hasRemaining()) {
-			if (!readIntoBuffer())
-				return -1;
+		for (;i<limit;i++) {
+			if (this.buf.get(i) == '\n')
+				return i;
 		}
 		
-		if (this.buf.remaining() < len) {
-			int rem=this.buf.remaining();
-			this.buf.get(rbuf, bufOffset, rem);
+		return -1;
+	}
+	
+	/*
+	 * Reads the next line into the fields without going through the Strings.
+	 * Returns false at the end of the file.
+	 */
+	protected boolean readLine(LineFields line) {
+		int start,end,limit;
+		
+		while (true) {
+			start = this.buf.position();
+			limit = this.buf.limit();
 			
-			readLen = rem;
+			end = indexOfNewline(start, limit);
 			
-			if (!readIntoBuffer()) {
-				return readLen;
+			if (end != -1) {
+				line.set(this.buf, start, end);
+				this.buf.position(end + 1);
+				return true;
 			}
 			
-			readLen += readBytes(rbuf,readLen,len-rem);
+			//last line of the file does not end with a new line
+			if (this.bufFilePos + limit >= this.fileSize || start == 0) {
+				
+				if (start == limit) {
+					this.isEof = true;
+					return false;
+				}
+				
+				line.set(this.buf, start, limit);
+				this.buf.position(limit);
+				return true;
+			}
 			
+			//line crosses the mapped window. map the next window from the start of the line
+			if (!mapRegion(this.bufFilePos + start, MAP_WINDOW_SIZE))
+				return false;
 		}
-		else {
-			this.buf.get(rbuf,bufOffset,len);
-			readLen = len;
-		}
-		
-		
-		return readLen;
 	}
 	
 	protected String[] splitMultiDelim(String str, String delims, boolean trimItem) {
@@ -196,125 +289,169 @@ public class CoverageDataSource implements AutoCloseable{
 	}
 	
 	protected String readLine() {
-		boolean gotLine=false;
-		String s = null;
-		StringBuilder sb = new StringBuilder();
-		byte b = 0;
 		
-		while (!gotLine) {
-			
-			b = readByte();
-			
-			if (b == -1 && this.isEof)
-				return null;
+		if (!readLine(this.lineFields))
+			return null;
+		
+		return this.lineFields.toString();
+	}
+	
+	/*
+	 * Decodes the fixed width basic block table which starts at the current read position
+	 * and lasts until the end of the file. The table is decoded in place from the mapped
+	 * file regions without copying records into the intermediate buffers.
+	 * 
+	 * Large tables are split into record aligned slices. Each slice is decoded
+	 * on the fork-join pool into its own entry table. Slice tables are concatenated
+	 * in the file order at the end so the entry order remains same.
+	 */
+	protected void readEntryTable(int entrySize) {
+		final long tablePos = this.bufFilePos + this.buf.position();
+		long tableEntries = (this.fileSize - tablePos) / entrySize;
+		
+		//trust the entry count in the header if the file has more bytes than its table
+		if (this.entryTableSize > 0 && this.entryTableSize < tableEntries)
+			tableEntries = this.entryTableSize;
+		
+		buildModuleFilter();
+		
+		int sliceCount = (int)Math.min(
+				ForkJoinPool.getCommonPoolParallelism(), 
+				tableEntries / MIN_DECODE_SLICE_ENTRIES);
+		
+		if (sliceCount < 2) {
+			decodeEntryRegion(tablePos, tableEntries, entrySize, this.entries);
+			this.isEof=true;
+			return;
+		}
+		
+		final long sliceEntries = (tableEntries + sliceCount - 1) / sliceCount;
+		List<ForkJoinTask<BlockEntryTable>> slices = new ArrayList<ForkJoinTask<BlockEntryTable>>();
+		
+		Log.info("Decoding %d entries in %d slices", tableEntries, sliceCount);
+		
+		for (long first=0;first<tableEntries;first+=sliceEntries) {
+			final long slicePos = tablePos + first * entrySize;
+			final long count = Math.min(sliceEntries, tableEntries - first);
 			
-			if (b == '\n') {
-				
-				if (sb.length() == 0)
-					return "";
-				
-				if (sb.charAt(sb.length()-1) == '\r') {
-					sb.deleteCharAt(sb.length()-1);
-				}
-				
-				s = sb.toString();
-				sb.setLength(0);
-				
-				gotLine=true;
-			}
-			else
-				sb.append((char)b);
+			slices.add(ForkJoinPool.commonPool().submit(() -> {
+				BlockEntryTable sliceTable = new BlockEntryTable();
+				decodeEntryRegion(slicePos, count, entrySize, sliceTable);
+				return sliceTable;
+			}));
+		}
+		
+		for (ForkJoinTask<BlockEntryTable> slice : slices) {
+			BlockEntryTable sliceTable = slice.join();
 			
+			this.entries.addAll(sliceTable);
+			sliceTable.clear();
 		}
 		
-		return s;
+		this.isEof=true;
 	}
 	
-	//gosh java!, why you have not unsigned types?
-	private int b2uint(byte b) {
-		return (b) & 0xFF;
-	}
-	
-	private Number[] mapBytesToValues(byte[] bytes, ByteMapTypes... types) {
-		Number[] values = new Number[types.length];
-		
-		int index=0,pos=0;
+	private void decodeEntryRegion(long regionPos, long regionEntries, int entrySize, BlockEntryTable target) {
+		//keep the mapping windows record aligned. so records never cross a window boundary
+		final long windowEntries = MAP_WINDOW_SIZE / entrySize;
+		ByteBuffer window;
+		int count;
 		
-		for (ByteMapTypes  bmt : types) {
-			switch (bmt) {
-			case Uint32:
-				int ival = b2uint(bytes[index]) | b2uint(bytes[index+1]) << 8 | b2uint(bytes[index+2]) << 16 | b2uint(bytes[index+3]) << 24;
-				values[pos++] = ival;
-				index += 4;
+		while (regionEntries > 0) {
+			
+			if (isCancelled())
 				break;
-			case UShort:
-				short sval = (short) (b2uint(bytes[index]) | b2uint(bytes[index+1]) << 8);
-				values[pos++] = sval;
-				index += 2;
+			
+			count = (int)Math.min(regionEntries, windowEntries);
+			
+			try {
+				window = this.channel.map(FileChannel.MapMode.READ_ONLY, regionPos, (long)count * entrySize);
+			} catch (IOException e) {
+				Log.println(e.getMessage());
 				break;
 			}
 			
+			window.order(ByteOrder.LITTLE_ENDIAN);
+			
+			decodeEntries(window, count, entrySize, target);
+			
+			regionPos += (long)count * entrySize;
+			regionEntries -= count;
 		}
-		
-		return values;
 	}
 	
-	private Number[] readBlockEntryNative(int readSize, ByteMapTypes... mapTypes) {
-		int readLen=0;
-		byte[] entryBuf = new byte[readSize];
-		
-		readLen = readBytes(entryBuf,0,readSize);
+	private void decodeEntries(ByteBuffer table, int count, int entrySize, BlockEntryTable target) {
+		final boolean extended = entrySize == ENTRY_SIZE_EXTENDED;
+		final long[] filter = this.moduleFilter;
+		int pos=0,instCount=0,mid;
 		
-		if (readLen == -1) {
-			this.isEof=true;
-			return null;
+		while (count-- > 0) {
+			
+			//peek the module id first. the other fields of the
+			//record are not needed to be decoded if its filtered out
+			mid = table.getShort(pos + 6) & 0xFFFF;
+			
+			if (filter != null && (filter[mid >>> 6] & (1L << mid)) == 0) {
+				pos += entrySize;
+				continue;
+			}
+			
+			if (extended)
+				instCount = table.getInt(pos + 8);
+			
+			target.add(
+					table.getInt(pos),
+					table.getShort(pos + 4) & 0xFFFF,
+					mid,
+					instCount);
+			
+			pos += entrySize;
 		}
-		
-		Number[] mapValues = mapBytesToValues(
-				entryBuf,
-				mapTypes);
-		
-		return mapValues;
 	}
 	
-	protected BlockEntry readEntry() {
-
-		Number[] mapValues = readBlockEntryNative(8,
-				ByteMapTypes.Uint32,ByteMapTypes.UShort, ByteMapTypes.UShort);
-		
-		if (mapValues == null)
-			return null;
+	private static int getEntryModuleId(ModuleInfo mod) {
+		if (mod.hasContainingId())
+			return mod.getContainingId();
 		
+		return mod.getId();
+	}
+	
+	private static boolean isModuleNameMatch(ModuleInfo mod, String name) {
+		return mod.getPath().toLowerCase().endsWith(name.toLowerCase());
+	}
+	
+	private void acceptModule(ModuleInfo mod) {
+		int mid = getEntryModuleId(mod);
 		
-		BlockEntry be = new BlockEntry(
-				mapValues[0].intValue(),
-				mapValues[1].intValue(),
-				mapValues[2].intValue(),
-				0);
+		if (mid < 0 || mid > 0xFFFF)
+			return;
 		
-		return be;
+		this.moduleFilter[mid >>> 6] |= 1L << mid;
 	}
 	
-	protected BlockEntry readEntryExtended() {
-		Number[] mapValues = readBlockEntryNative(12,
-				ByteMapTypes.Uint32,ByteMapTypes.UShort, ByteMapTypes.UShort, ByteMapTypes.Uint32);
+	protected final boolean isModuleAccepted(int mid) {
+		return this.moduleFilter == null || (this.moduleFilter[mid >>> 6] & (1L << mid)) != 0;
+	}
+	
+	/*
+	 * Only the entries of the main module are decoded. The other modules' entries
+	 * are skipped, they can not be mapped onto the image.
+	 */
+	protected void buildModuleFilter() {
+		this.moduleFilter = null;
 		
-		if (mapValues == null) 
-			return null;
+		if (this.mainModule == null)
+			return;
 		
-		BlockEntry be = new BlockEntry(
-				mapValues[0].intValue(),
-				mapValues[1].intValue(),
-				mapValues[2].intValue(),
-				mapValues[3].intValue());
+		this.moduleFilter = new long[0x10000 / 64];
 		
-		return be;
+		acceptModule(this.mainModule);
 	}
 	
 	protected void pushModule(ModuleInfo mod) {
 		if (this.mainModuleName != null && 
 				this.mainModule == null && 
-				mod.getPath().toLowerCase().endsWith(this.mainModuleName.toLowerCase())
+				isModuleNameMatch(mod, this.mainModuleName)
 				) 
 		{
 			this.mainModule = mod;
@@ -325,21 +462,6 @@ public class CoverageDataSource implements AutoCloseable{
 		this.modules.add(mod);
 	}
 	
-	private boolean isMainModuleEntry(BlockEntry entry) {
-		final boolean hasCid = this.mainModule.hasContainingId();
-		
-		if (!hasCid)
-			return this.mainModule.getId() == entry.getModuleId();
-		
-		return this.mainModule.getContainingId() == entry.getModuleId();
-	}
-	
-	protected void pushEntry(BlockEntry entry) {
-		if (this.mainModule == null || (this.mainModule != null && isMainModuleEntry(entry))) {
-			this.entries.add(entry);
-		}
-	}
-	
 	public boolean process() {
 		
 		if (this.processed) {
@@ -352,6 +474,34 @@ public class CoverageDataSource implements AutoCloseable{
 		return false;
 	}
 	
+	/*
+	 * Processes the source while the decoding is checking the monitor.
+	 * Returns false if it's cancelled. A cancelled source is left as not processed.
+	 */
+	public boolean process(TaskMonitor monitor) {
+		boolean result;
+		
+		this.monitor = monitor;
+		
+		try {
+			result = process();
+		}
+		finally {
+			this.monitor = TaskMonitor.DUMMY;
+		}
+		
+		if (monitor.isCancelled()) {
+			this.processed = false;
+			return false;
+		}
+		
+		return result;
+	}
+	
+	protected final boolean isCancelled() {
+		return this.monitor.isCancelled();
+	}
+	
 	public final boolean isProcessed() {
 		return this.processed;
 	}
@@ -370,11 +520,22 @@ public class CoverageDataSource implements AutoCloseable{
 	}
 	
 	
+	/*
+	 * Entry table is only needed while the code ranges are being built.
+	 */
+	public void releaseEntries() {
+		this.readedEntryCount = this.entries.size();
+		this.entries.clear();
+	}
+	
 	@Override
 	public void close() throws Exception {
 		this.modules.clear();
 		this.entries.clear();
-		this.fis.close();
+		this.buf = null;
+		
+		if (this.channel != null)
+			this.channel.close();
 	}
 	
 	public final int getModuleCount() {
@@ -382,6 +543,9 @@ public class CoverageDataSource implements AutoCloseable{
 	}
 	
 	public final int getReadedModuleCount() {
+		if (this.readedModuleCount >= 0)
+			return this.readedModuleCount;
+		
 		return this.modules.size();
 	}
 	
@@ -390,6 +554,9 @@ public class CoverageDataSource implements AutoCloseable{
 	}
 	
 	public final int getReadedEntryCount() {
+		if (this.readedEntryCount >= 0)
+			return this.readedEntryCount;
+		
 		return this.entries.size();
 	}
 	
@@ -407,4 +574,28 @@ public class CoverageDataSource implements AutoCloseable{
 	public final String getFilePath() {
 		return this.filePath;
 	}
+	
+	/*
+	 * Instructions of an already built coverage. Data sources that store built coverages
+	 * return them, so the code ranges are built without decoding the block entries.
+	 */
+	public InstructionHitTable getInstructionTable() {
+		return null;
+	}
+	
+	public final String getCacheKey() {
+		return this.cacheKey;
+	}
+	
+	public void setCacheKey(String key) {
+		this.cacheKey = key;
+	}
+	
+	/*
+	 * Used by the data sources that restore a coverage which was read from another file.
+	 */
+	protected void setOrigin(String sourceFile) {
+		this.filePath = sourceFile;
+		this.name = Util.getObjectNameFromPath(sourceFile);
+	}
 }
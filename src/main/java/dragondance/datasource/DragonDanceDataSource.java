@@ -0,0 +1,507 @@
+package dragondance.datasource;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import dragondance.Log;
+
+/*
+ DragonDance coverage file format (little endian)
+
+ "DDCOV VERSION: 1" signature line
+
+ header:
+ 	int flags (FLAG_COMPRESSED, FLAG_INSTRUCTION_COUNTS)
+ 	int module count
+ 	int entry count
+ 	int block count
+ 	int module table size in bytes
+
+ module table (repeated module count times):
+ 	int id, int containing id
+ 	long base, long end
+ 	short length + utf8 path
+
+ entry block (repeated block count times):
+ 	int entry count, int encoded size, int stored size
+ 	byte[stored size] encoded entries. deflated if FLAG_COMPRESSED is set
+
+ Entries are sorted by their module id, offset and size. Each entry is encoded as
+ the varints of the module id delta, offset delta (from 0 if the module changed), size and
+ the instruction count if FLAG_INSTRUCTION_COUNTS is set. Deltas restart at each block,
+ so the blocks are decoded independently of each other.
+ */
+
+public class DragonDanceDataSource extends CoverageDataSource {
+	public static final String SIGNATURE = "DDCOV VERSION:";
+	public static final int VERSION = 1;
+	
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int FLAG_INSTRUCTION_COUNTS = 2;
+	
+	private static final int HEADER_SIZE = 5 * 4;
+	private static final int BLOCK_HEADER_SIZE = 3 * 4;
+	
+	//number of the entries encoded into a block
+	private static final int BLOCK_ENTRIES = 1 << 16;
+	
+	//max encoded size of an entry. 3 bytes module delta, 5 bytes offset, 3 bytes size, 5 bytes inst count
+	private static final int MAX_ENCODED_ENTRY_SIZE = 16;
+	
+	private int version;
+	private int flags;
+	
+	public DragonDanceDataSource(String sourceFile, String mainModule) throws FileNotFoundException {
+		super(sourceFile, mainModule, CoverageDataSource.SOURCE_TYPE_DDCOV);
+	}
+	
+	private ByteBuffer mapChecked(long pos, long length) throws IOException {
+		if (length < 0 || pos + length > getFileSize())
+			throw new IOException("file is truncated");
+		
+		return mapFileRegion(pos, length);
+	}
+	
+	private boolean parseInformation() throws IOException, DataFormatException {
+		String line = readLine();
+		String[] parts;
+		ByteBuffer header;
+		long pos;
+		int blockCount,moduleTableSize;
+		
+		if (line == null || !line.startsWith(SIGNATURE))
+			return false;
+		
+		parts = splitMultiDelim(line, ": ", false);
+		this.version = Integer.parseInt(parts[2]);
+		
+		if (this.version > VERSION) {
+			Log.warning("unsupported ddcov version: %d", this.version);
+			return false;
+		}
+		
+		pos = getReadPosition();
+		header = mapChecked(pos, HEADER_SIZE);
+		
+		this.flags = header.getInt();
+		this.moduleCount = header.getInt();
+		this.entryTableSize = header.getInt();
+		blockCount = header.getInt();
+		moduleTableSize = header.getInt();
+		
+		pos += HEADER_SIZE;
+		
+		readModules(mapChecked(pos, moduleTableSize));
+		
+		pos += moduleTableSize;
+		
+		readBlocks(pos, blockCount);
+		
+		return true;
+	}
+	
+	private void readModules(ByteBuffer table) {
+		int id,cid;
+		long base,end;
+		byte[] path;
+		
+		for (int i=0;i<this.moduleCount;i++) {
+			id = table.getInt();
+			cid = table.getInt();
+			base = table.getLong();
+			end = table.getLong();
+			
+			path = new byte[table.getShort() & 0xFFFF];
+			table.get(path);
+			
+			pushModule(new ModuleInfo(id, cid, base, end, new String(path, StandardCharsets.UTF_8)));
+		}
+	}
+	
+	private void readBlocks(long pos, int blockCount) throws IOException, DataFormatException {
+		long[] blockPos = new long[blockCount];
+		int[] blockSize = new int[blockCount];
+		ByteBuffer blockHeader;
+		
+		buildModuleFilter();
+		
+		//walk the block headers first. so each block can be decoded on its own
+		for (int i=0;i<blockCount;i++) {
+			blockHeader = mapChecked(pos, BLOCK_HEADER_SIZE);
+			
+			blockPos[i] = pos;
+			blockSize[i] = BLOCK_HEADER_SIZE + blockHeader.getInt(8);
+			
+			pos += blockSize[i];
+		}
+		
+		if (blockCount < 2) {
+			for (int i=0;i<blockCount;i++)
+				decodeBlock(blockPos[i], blockSize[i], this.entries);
+			
+			return;
+		}
+		
+		List<ForkJoinTask<BlockEntryTable>> blocks = new ArrayList<ForkJoinTask<BlockEntryTable>>();
+		
+		for (int i=0;i<blockCount;i++) {
+			final long bpos = blockPos[i];
+			final int bsize = blockSize[i];
+			
+			blocks.add(ForkJoinPool.commonPool().submit(() -> {
+				BlockEntryTable blockTable = new BlockEntryTable();
+				decodeBlock(bpos, bsize, blockTable);
+				return blockTable;
+			}));
+		}
+		
+		for (ForkJoinTask<BlockEntryTable> block : blocks) {
+			BlockEntryTable blockTable = block.join();
+			
+			this.entries.addAll(blockTable);
+			blockTable.clear();
+		}
+	}
+	
+	private static long readVarint(ByteBuffer buf) {
+		long value=0;
+		int shift=0;
+		byte b;
+		
+		do {
+			b = buf.get();
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		
+		return value;
+	}
+	
+	private void decodeBlock(long pos, int size, BlockEntryTable target) throws IOException, DataFormatException {
+		final boolean hasCounts = (this.flags & FLAG_INSTRUCTION_COUNTS) != 0;
+		ByteBuffer block,data;
+		int count,encodedSize,mid=0,delta,instCount=0,entrySize;
+		long offset=0;
+		
+		if (isCancelled())
+			return;
+		
+		block = mapChecked(pos, size);
+		
+		count = block.getInt();
+		encodedSize = block.getInt();
+		block.getInt();
+		
+		if ((this.flags & FLAG_COMPRESSED) != 0) {
+			byte[] stored = new byte[size - BLOCK_HEADER_SIZE];
+			byte[] encoded = new byte[encodedSize];
+			Inflater inflater = new Inflater();
+			
+			block.get(stored);
+			
+			try {
+				inflater.setInput(stored);
+				
+				if (inflater.inflate(encoded) != encodedSize)
+					throw new DataFormatException("entry block is corrupted");
+			}
+			finally {
+				inflater.end();
+			}
+			
+			data = ByteBuffer.wrap(encoded);
+		}
+		else
+			data = block.slice();
+		
+		while (count-- > 0) {
+			delta = (int)readVarint(data);
+			
+			if (delta != 0) {
+				mid += delta;
+				offset = 0;
+			}
+			
+			offset += readVarint(data);
+			entrySize = (int)readVarint(data);
+			
+			if (hasCounts)
+				instCount = (int)readVarint(data);
+			
+			if (!isModuleAccepted(mid))
+				continue;
+			
+			target.add((int)offset, entrySize, mid, instCount);
+		}
+	}
+	
+	@Override
+	public boolean process() {
+		
+		try {
+			if (!parseInformation())
+				return false;
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			Log.println("%s could not be read (%s)", getName(), e.getMessage());
+			return false;
+		}
+		
+		this.isEof=true;
+		this.processed=true;
+		
+		return super.process();
+	}
+	
+	public int getVersion() {
+		return this.version;
+	}
+	
+	/*
+	 * Sorts the entry keys as unsigned with their instruction counts.
+	 * LSD radix sort over 16 bit digits, so the payload moves together with its key.
+	 */
+	private static void sortEntries(long[] keys, int[] payload) {
+		final int n = keys.length;
+		long[] keyTemp = new long[n],keySwap;
+		int[] payloadTemp = payload != null ? new int[n] : null,payloadSwap;
+		int[] counts = new int[0x10000 + 1];
+		int digit,slot;
+		
+		for (int shift=0;shift<64;shift+=16) {
+			Arrays.fill(counts, 0);
+			
+			for (int i=0;i<n;i++)
+				counts[((int)(keys[i] >>> shift) & 0xFFFF) + 1]++;
+			
+			for (int d=0;d<0x10000;d++)
+				counts[d + 1] += counts[d];
+			
+			for (int i=0;i<n;i++) {
+				digit = (int)(keys[i] >>> shift) & 0xFFFF;
+				slot = counts[digit]++;
+				
+				keyTemp[slot] = keys[i];
+				
+				if (payload != null)
+					payloadTemp[slot] = payload[i];
+			}
+			
+			keySwap = keys;
+			keys = keyTemp;
+			keyTemp = keySwap;
+			
+			payloadSwap = payload;
+			payload = payloadTemp;
+			payloadTemp = payloadSwap;
+		}
+		
+		//even number of passes. sorted entries are back in the callers arrays
+	}
+	
+	private static int writeVarint(byte[] buf, int pos, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		buf[pos++] = (byte)value;
+		
+		return pos;
+	}
+	
+	private static byte[] encodeModuleTable(List<ModuleInfo> modules) {
+		List<byte[]> paths = new ArrayList<byte[]>();
+		ByteBuffer table;
+		int size=0;
+		
+		for (ModuleInfo mod : modules) {
+			byte[] path = mod.getPath().getBytes(StandardCharsets.UTF_8);
+			
+			if (path.length > 0xFFFF)
+				path = Arrays.copyOf(path, 0xFFFF);
+			
+			paths.add(path);
+			size += 4 + 4 + 8 + 8 + 2 + path.length;
+		}
+		
+		table = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		
+		for (int i=0;i<modules.size();i++) {
+			ModuleInfo mod = modules.get(i);
+			
+			table.putInt(mod.getId());
+			table.putInt(mod.getContainingId());
+			table.putLong(mod.getBase());
+			table.putLong(mod.getEnd());
+			table.putShort((short)paths.get(i).length);
+			table.put(paths.get(i));
+		}
+		
+		return table.array();
+	}
+	
+	/*
+	 * Writes the modules and the block entries of a processed source in ddcov format.
+	 */
+	public static void write(CoverageDataSource source, String outFile, boolean compress) throws IOException {
+		BlockEntryTable entries = source.entries;
+		final int count = entries.size();
+		final int blockCount = (count + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES;
+		long[] keys = new long[count];
+		int[] instCounts = null;
+		byte[] moduleTable,encoded,deflated=null,stored;
+		ByteBuffer header;
+		Deflater deflater=null;
+		int flags=0,encodedSize,storedSize;
+		
+		BlockEntryTable.Cursor entry = entries.cursor();
+		
+		while (entry.next()) {
+			keys[entry.getIndex()] = ((long)entry.getModuleId() << 48) |
+					((entry.getOffset() & 0xFFFFFFFFL) << 16) | entry.getSize();
+			
+			if (entry.getInstructionCount() != 0) {
+				if (instCounts == null)
+					instCounts = new int[count];
+				
+				instCounts[entry.getIndex()] = entry.getInstructionCount();
+			}
+		}
+		
+		sortEntries(keys, instCounts);
+		
+		if (compress) {
+			flags |= FLAG_COMPRESSED;
+			deflater = new Deflater();
+			deflated = new byte[BLOCK_ENTRIES * MAX_ENCODED_ENTRY_SIZE];
+		}
+		
+		if (instCounts != null)
+			flags |= FLAG_INSTRUCTION_COUNTS;
+		
+		moduleTable = encodeModuleTable(source.modules);
+		encoded = new byte[BLOCK_ENTRIES * MAX_ENCODED_ENTRY_SIZE];
+		
+		header = ByteBuffer.allocate(Math.max(HEADER_SIZE, BLOCK_HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+		
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile), 1 << 20)) {
+			
+			out.write(String.format("%s %d\n", SIGNATURE, VERSION).getBytes(StandardCharsets.US_ASCII));
+			
+			header.putInt(flags);
+			header.putInt(source.modules.size());
+			header.putInt(count);
+			header.putInt(blockCount);
+			header.putInt(moduleTable.length);
+			
+			out.write(header.array(), 0, HEADER_SIZE);
+			out.write(moduleTable);
+			
+			for (int first=0;first<count;first+=BLOCK_ENTRIES) {
+				final int last = Math.min(count, first + BLOCK_ENTRIES);
+				long prevMid=0,prevOffset=0,mid,offset;
+				
+				encodedSize = 0;
+				
+				for (int i=first;i<last;i++) {
+					mid = keys[i] >>> 48;
+					offset = (keys[i] >>> 16) & 0xFFFFFFFFL;
+					
+					if (mid != prevMid)
+						prevOffset = 0;
+					
+					encodedSize = writeVarint(encoded, encodedSize, mid - prevMid);
+					encodedSize = writeVarint(encoded, encodedSize, offset - prevOffset);
+					encodedSize = writeVarint(encoded, encodedSize, keys[i] & 0xFFFF);
+					
+					if (instCounts != null)
+						encodedSize = writeVarint(encoded, encodedSize, instCounts[i] & 0xFFFFFFFFL);
+					
+					prevMid = mid;
+					prevOffset = offset;
+				}
+				
+				stored = encoded;
+				storedSize = encodedSize;
+				
+				if (deflater != null) {
+					deflater.reset();
+					deflater.setInput(encoded, 0, encodedSize);
+					deflater.finish();
+					
+					storedSize = 0;
+					
+					while (!deflater.finished()) {
+						if (storedSize == deflated.length)
+							deflated = Arrays.copyOf(deflated, deflated.length * 2);
+						
+						storedSize += deflater.deflate(deflated, storedSize, deflated.length - storedSize);
+					}
+					
+					stored = deflated;
+				}
+				
+				header.clear();
+				header.putInt(last - first);
+				header.putInt(encodedSize);
+				header.putInt(storedSize);
+				
+				out.write(header.array(), 0, BLOCK_HEADER_SIZE);
+				out.write(stored, 0, storedSize);
+			}
+		}
+		finally {
+			if (deflater != null)
+				deflater.end();
+		}
+	}
+	
+	/*
+	 * Converts a drcov, ddph or ddcov file into the ddcov format.
+	 * Entries of all of the modules are kept.
+	 */
+	public static void convert(String inputFile, String outputFile, boolean compress) throws IOException {
+		CoverageDataSource source;
+		
+		switch (detectCoverageDataFileType(inputFile)) {
+		case SOURCE_TYPE_DYNA:
+			source = new DynamorioDataSource(inputFile, null);
+			break;
+		case SOURCE_TYPE_PINTOOL:
+			source = new PintoolDataSource(inputFile, null);
+			break;
+		case SOURCE_TYPE_DDCOV:
+			source = new DragonDanceDataSource(inputFile, null);
+			break;
+		default:
+			throw new IOException(inputFile + " is not a supported coverage file");
+		}
+		
+		try {
+			if (!source.process())
+				throw new IOException(inputFile + " could not be processed");
+			
+			write(source, outputFile, compress);
+		}
+		finally {
+			try {
+				source.close();
+			} catch (Exception e) { }
+		}
+	}
+	
+}
@@ -76,31 +76,20 @@ public class DynamorioDataSource extends CoverageDataSource {
 			
 		}
 		
-		final boolean hasCid = map.containsKey("containing_id");
-		String line;
+		final int idField = map.getOrDefault("id", 0);
+		final int cidField = map.getOrDefault("containing_id", -1);
+		final int baseField = map.getOrDefault("base", 1);
+		final int endField = map.getOrDefault("end", 2);
+		final int pathField = map.getOrDefault("path", this.moduleInfoColumns.length - 1);
+		
+		LineFields line = this.lineFields;
 		int readModuleCount=0;
 		ModuleInfo mod=null;
 		
-		while ((line = readLine()) != null) {
-			String[] parts = splitMultiDelim(line,",",true);
+		while (readLine(line)) {
+			line.split(",", true);
 			
-			if (hasCid) {
-				mod = ModuleInfo.make(
-						parts[map.get("id")],
-						parts[map.get("containing_id")],
-						parts[map.get("base")], 
-						parts[map.get("end")], 
-						parts[map.get("path")]
-								);
-			}
-			else {
-				mod = ModuleInfo.make(
-						parts[map.get("id")],
-						parts[map.get("base")], 
-						parts[map.get("end")], 
-						parts[map.get("path")]
-								);
-			}
+			mod = ModuleInfo.make(line, idField, cidField, baseField, endField, pathField);
 			
 			if (mod == null) {
 				Log.warning("module not parsed for: %s", line);
@@ -115,11 +104,7 @@ public class DynamorioDataSource extends CoverageDataSource {
 	}
 	
 	private void readEntries() {
-		BlockEntry entry;
-		
-		while ((entry = this.readEntry()) != null) {
-			this.pushEntry(entry);
-		}
+		readEntryTable(ENTRY_SIZE);
 	}
 	
 	@Override
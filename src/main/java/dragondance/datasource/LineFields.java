@@ -0,0 +1,183 @@
+package dragondance.datasource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Reusable byte buffer of a text line and the [start,end) slices of its fields.
+ * Module table rows are tokenized and parsed through it without creating
+ * a String for each of the fields. Only the fields that are kept (e.g. module path)
+ * are turned into Strings.
+ */
+public class LineFields {
+	private byte[] line;
+	private int length=0;
+	
+	private int[] starts;
+	private int[] ends;
+	private int fieldCount=0;
+	
+	public LineFields() {
+		this.line = new byte[256];
+		this.starts = new int[16];
+		this.ends = new int[16];
+	}
+	
+	/*
+	 * Copies the [start,end) bytes of the src as the line. Trailing \r is dropped.
+	 */
+	void set(ByteBuffer src, int start, int end) {
+		int len = end - start;
+		
+		if (len > 0 && src.get(end - 1) == '\r')
+			len--;
+		
+		if (len > this.line.length)
+			this.line = new byte[Math.max(len, this.line.length * 2)];
+		
+		ByteBuffer view = src.duplicate();
+		
+		view.position(start);
+		view.get(this.line, 0, len);
+		
+		this.length = len;
+		this.fieldCount = 0;
+	}
+	
+	//same as the String.trim
+	private static boolean isSpace(byte b) {
+		return (b & 0xFF) <= ' ';
+	}
+	
+	private void addField(int start, int end, boolean trim) {
+		
+		if (trim) {
+			while (start < end && isSpace(this.line[start]))
+				start++;
+			
+			while (end > start && isSpace(this.line[end - 1]))
+				end--;
+		}
+		
+		if (this.fieldCount == this.starts.length) {
+			this.starts = Arrays.copyOf(this.starts, this.fieldCount * 2);
+			this.ends = Arrays.copyOf(this.ends, this.fieldCount * 2);
+		}
+		
+		this.starts[this.fieldCount] = start;
+		this.ends[this.fieldCount] = end;
+		this.fieldCount++;
+	}
+	
+	/*
+	 * Splits the line by any of the delimiter chars. Adjacent delimiters
+	 * do not produce empty fields. Returns the field count.
+	 */
+	public int split(String delims, boolean trimField) {
+		int p=0;
+		
+		this.fieldCount = 0;
+		
+		for (int i=0;i<this.length;i++) {
+			if (delims.indexOf(this.line[i]) != -1) {
+				
+				if (p != i)
+					addField(p, i, trimField);
+				
+				p = i + 1;
+			}
+		}
+		
+		if (p != this.length)
+			addField(p, this.length, trimField);
+		
+		return this.fieldCount;
+	}
+	
+	public final int getFieldCount() {
+		return this.fieldCount;
+	}
+	
+	public final boolean isEmpty(int field) {
+		return this.starts[field] == this.ends[field];
+	}
+	
+	public String getString(int field) {
+		return new String(this.line, this.starts[field], this.ends[field] - this.starts[field], StandardCharsets.ISO_8859_1);
+	}
+	
+	public int parseInt(int field) {
+		int pos = this.starts[field];
+		int end = this.ends[field];
+		boolean negative=false;
+		long value=0;
+		
+		if (pos < end && this.line[pos] == '-') {
+			negative = true;
+			pos++;
+		}
+		
+		if (pos == end)
+			throw new NumberFormatException("empty number field");
+		
+		for (;pos<end;pos++) {
+			int digit = this.line[pos] - '0';
+			
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("invalid decimal field: " + getString(field));
+			
+			value = value * 10 + digit;
+			
+			if (value > Integer.MAX_VALUE + 1L)
+				throw new NumberFormatException("decimal field is too big: " + getString(field));
+		}
+		
+		if (negative)
+			value = -value;
+		
+		if (value > Integer.MAX_VALUE)
+			throw new NumberFormatException("decimal field is too big: " + getString(field));
+		
+		return (int)value;
+	}
+	
+	/*
+	 * Parses an unsigned 64 bit hex value with or without 0x prefix
+	 */
+	public long parseHex(int field) {
+		int pos = this.starts[field];
+		int end = this.ends[field];
+		long value=0;
+		int digit;
+		byte b;
+		
+		if (end - pos > 2 && this.line[pos] == '0' && (this.line[pos + 1] == 'x' || this.line[pos + 1] == 'X'))
+			pos += 2;
+		
+		if (pos == end || end - pos > 16)
+			throw new NumberFormatException("invalid hex field: " + getString(field));
+		
+		for (;pos<end;pos++) {
+			b = this.line[pos];
+			
+			if (b >= '0' && b <= '9')
+				digit = b - '0';
+			else if (b >= 'a' && b <= 'f')
+				digit = b - 'a' + 10;
+			else if (b >= 'A' && b <= 'F')
+				digit = b - 'A' + 10;
+			else
+				throw new NumberFormatException("invalid hex field: " + getString(field));
+			
+			value = (value << 4) | digit;
+		}
+		
+		return value;
+	}
+	
+	@Override
+	public String toString() {
+		return new String(this.line, 0, this.length, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -42,6 +42,35 @@ public class ModuleInfo {
 	public static ModuleInfo make(String id, String mbase, String mend, String mpath) {
 		return make(id,null,mbase,mend,mpath);
 	}
+	
+	/*
+	 * Makes the module from the fields of a module table row. Numbers are parsed
+	 * directly from the line bytes. cidField is -1 if the row has no containing id.
+	 */
+	public static ModuleInfo make(LineFields fields, int idField, int cidField, int baseField, int endField, int pathField) {
+		ModuleInfo mod;
+		int lastField = Math.max(Math.max(idField, cidField), Math.max(Math.max(baseField, endField), pathField));
+		
+		if (lastField >= fields.getFieldCount())
+			return null;
+		
+		mod = new ModuleInfo(-1,-1,0,0,fields.getString(pathField));
+		
+		try
+		{
+			mod.id = fields.parseInt(idField);
+			mod.base = fields.parseHex(baseField);
+			mod.end = fields.parseHex(endField);
+			
+			if (cidField >= 0 && !fields.isEmpty(cidField))
+				mod.c_id = fields.parseInt(cidField);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		
+		return mod;
+	}
 
 	public final boolean hasContainingId() {
 		return c_id > -1;
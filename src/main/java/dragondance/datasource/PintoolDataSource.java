@@ -31,17 +31,13 @@ public class PintoolDataSource extends CoverageDataSource {
 	}
 	
 	private void readModules() {		
-		String line;
+		LineFields line = this.lineFields;
 		int readModuleCount=0;
 		
-		while ((line = readLine()) != null) {
-			String[] parts = splitMultiDelim(line,",", true);
+		while (readLine(line)) {
+			line.split(",", true);
 			
-			ModuleInfo mod = ModuleInfo.make(
-					parts[0], 
-					parts[1], 
-					parts[2], 
-					parts[3] );
+			ModuleInfo mod = ModuleInfo.make(line, 0, -1, 1, 2, 3);
 	
 			if (mod == null) {
 				Log.warning("Module not parsed for: %s", line);
@@ -56,11 +52,7 @@ public class PintoolDataSource extends CoverageDataSource {
 	}
 	
 	private void readEntries() {
-		BlockEntry entry;
-		
-		while ((entry = this.readEntryExtended()) != null) {
-			this.pushEntry(entry);
-		}
+		readEntryTable(ENTRY_SIZE_EXTENDED);
 	}
 	
 	@Override
@@ -0,0 +1,210 @@
+package dragondance.datasource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import dragondance.Globals;
+import dragondance.Log;
+
+/*
+ * On disk cache of the built coverages. Entries are keyed by the content hash of
+ * the trace file, the executable md5, the main module and the listing stamp, so re-importing
+ * the same trace from any path or session loads its already merged ranges. A coverage built
+ * before the instructions are changed (re-disassembly, re-analysis) is not loaded again.
+ * Each entry is a single coverage session database. Least recently used entries
+ * are evicted when the cache directory grows beyond Globals.TraceCacheMaxSize.
+ */
+public class TraceCache {
+	private static final String ENTRY_EXTENSION = ".ddcache";
+	
+	//trace files are hashed through this size of mapped windows
+	private static final long HASH_WINDOW_SIZE = 64L * 1024 * 1024;
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private static File getCacheDirectory() {
+		File dir = new File(Globals.TraceCacheDirectory);
+		
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return null;
+		
+		return dir;
+	}
+	
+	private static File getEntryFile(String key) {
+		File dir = getCacheDirectory();
+		
+		if (dir == null)
+			return null;
+		
+		return new File(dir, key + ENTRY_EXTENSION);
+	}
+	
+	private static void updateString(MessageDigest digest, String s) {
+		if (s != null)
+			digest.update(s.getBytes(StandardCharsets.UTF_8));
+		
+		//separator. so the adjacent fields can not be mixed up
+		digest.update((byte)0);
+	}
+	
+	/*
+	 * Returns the cache key of the trace file or null if it can not be hashed
+	 */
+	public static String makeKey(String traceFile, String executableMD5, String mainModule, String listingStamp) {
+		MessageDigest digest;
+		ByteBuffer window;
+		long pos=0,size;
+		
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		
+		try (RandomAccessFile raf = new RandomAccessFile(traceFile, "r")) {
+			FileChannel channel = raf.getChannel();
+			
+			size = channel.size();
+			
+			while (pos < size) {
+				window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(HASH_WINDOW_SIZE, size - pos));
+				pos += window.remaining();
+				
+				digest.update(window);
+			}
+		} catch (IOException e) {
+			Log.println("%s could not be hashed (%s)", traceFile, e.getMessage());
+			return null;
+		}
+		
+		updateString(digest, executableMD5);
+		updateString(digest, mainModule != null ? mainModule.toLowerCase() : null);
+		updateString(digest, listingStamp);
+		
+		return toHex(digest.digest());
+	}
+	
+	private static String toHex(byte[] data) {
+		char[] hex = new char[data.length * 2];
+		
+		for (int i=0;i<data.length;i++) {
+			hex[i*2] = HEX[(data[i] >> 4) & 0xF];
+			hex[i*2+1] = HEX[data[i] & 0xF];
+		}
+		
+		return new String(hex);
+	}
+	
+	/*
+	 * Returns the cached coverage source of the key or null if it's not cached.
+	 * The source is presented as if it was read from the traceFile.
+	 */
+	public static CommonDatabaseDataSource lookup(String key, String traceFile, long imageBase) {
+		CommonDatabaseDataSource.DatabaseContent content;
+		File entry = getEntryFile(key);
+		
+		if (entry == null || !entry.isFile())
+			return null;
+		
+		try {
+			content = CommonDatabaseDataSource.readDatabase(entry.getPath(), imageBase);
+		} catch (IOException e) {
+			Log.println("cache entry %s is broken (%s)", entry.getName(), e.getMessage());
+			entry.delete();
+			return null;
+		}
+		
+		if (content.getSources().size() != 1) {
+			for (CommonDatabaseDataSource source : content.getSources()) {
+				try {
+					source.close();
+				} catch (Exception e) { }
+			}
+			
+			return null;
+		}
+		
+		//keep the recently used entries away from the eviction
+		entry.setLastModified(System.currentTimeMillis());
+		
+		content.getSources().get(0).setOrigin(traceFile);
+		
+		Log.info("%s loaded from the trace cache", traceFile);
+		
+		return content.getSources().get(0);
+	}
+	
+	/*
+	 * Stores the built coverage under the key. The entry is written into
+	 * a temporary file and moved into place, so concurrent lookups never see a partial entry.
+	 */
+	public static void store(String key, String executableMD5, CoverageData coverage) {
+		File entry = getEntryFile(key);
+		File temp;
+		
+		if (entry == null || coverage.getRangeCount() == 0)
+			return;
+		
+		temp = new File(entry.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		
+		try {
+			CommonDatabaseDataSource.writeDatabase(temp.getPath(), executableMD5, key,
+					Collections.singletonList(coverage));
+			
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.println("%s could not be cached (%s)", coverage.getName(), e.getMessage());
+			temp.delete();
+			return;
+		}
+		
+		evict();
+	}
+	
+	/*
+	 * Deletes the least recently used entries until the cache fits into its disk budget
+	 */
+	public static synchronized void evict() {
+		File dir = getCacheDirectory();
+		File[] entries;
+		long totalSize=0;
+		
+		if (dir == null)
+			return;
+		
+		entries = dir.listFiles((d, name) -> name.endsWith(ENTRY_EXTENSION));
+		
+		if (entries == null)
+			return;
+		
+		for (File entry : entries)
+			totalSize += entry.length();
+		
+		if (totalSize <= Globals.TraceCacheMaxSize)
+			return;
+		
+		Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		
+		for (File entry : entries) {
+			if (totalSize <= Globals.TraceCacheMaxSize)
+				break;
+			
+			long size = entry.length();
+			
+			//an entry that is still open may not be deleted. skip it
+			if (entry.delete())
+				totalSize -= size;
+		}
+	}
+}
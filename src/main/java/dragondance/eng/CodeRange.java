@@ -1,10 +1,9 @@
 package dragondance.eng;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import dragondance.Globals;
 import dragondance.Log;
 import dragondance.datasource.CoverageData;
 import dragondance.exceptions.InvalidInstructionAddress;
@@ -12,14 +11,14 @@ import dragondance.exceptions.OperationAbortedException;
 
 public class CodeRange implements AutoCloseable {
 	
-	private static int gs_RangeIndex=1;
+	private static AtomicInteger gs_RangeIndex=new AtomicInteger(1);
 	
 	private long rangeStart,rangeEnd,rangeSize;
 	
 	private long avgInstSize=0;
 	private long totalInstSize=0;
 	private List<InstructionInfo> densityList;
-	private HashMap<Long, List<InstructionInfo>> map;
+	private InstructionAddressMap map;
 	
 	private String name;
 	private CoverageData container;
@@ -33,7 +32,7 @@ public class CodeRange implements AutoCloseable {
 		}
 	}
 	
-	public CodeRange(CoverageData container, long start, int size, HashMap<Long, List<InstructionInfo>> addressMap, boolean singleInstruction) throws InvalidInstructionAddress, OperationAbortedException {
+	public CodeRange(CoverageData container, long start, int size, InstructionAddressMap addressMap, boolean singleInstruction) throws InvalidInstructionAddress, OperationAbortedException {
 		this.rangeStart = start;
 		this.rangeEnd = start + size;
 		this.rangeSize = size;
@@ -42,13 +41,22 @@ public class CodeRange implements AutoCloseable {
 		
 		this.densityList = new ArrayList<InstructionInfo>();
 		
-		this.name = "Range " + String.valueOf(gs_RangeIndex);
-		
-		CodeRange.gs_RangeIndex++;
+		this.name = "Range " + String.valueOf(gs_RangeIndex.getAndIncrement());
 		
 		this.add(start, size,singleInstruction);
 	}
 	
+	/*
+	 * Creates a range from an already known instruction. There is no instruction decoding.
+	 */
+	public static CodeRange fromInstruction(CoverageData container, long addr, int size, int density, InstructionAddressMap addressMap) throws InvalidInstructionAddress, OperationAbortedException {
+		CodeRange range = new CodeRange(container, addr, size, addressMap, true);
+		
+		range.densityList.get(0).setDensity(density);
+		
+		return range;
+	}
+	
 	public CodeRange(CoverageData container, long start, int size, boolean singleInstruction) throws InvalidInstructionAddress, OperationAbortedException {
 		this(container,start,size,null,singleInstruction);
 	}
@@ -119,18 +127,15 @@ public class CodeRange implements AutoCloseable {
 	}
 	
 	private int getInstructionSize(long addr) throws InvalidInstructionAddress, OperationAbortedException {
-		InstructionContext ictx = null;
-		
-		if (Globals.WithoutGhidra)
-			return 4;
+		int size;
 		
-		ictx = DragonHelper.getInstruction(addr,true);
+		size = this.container.getProgramView().getInstructionSize(addr);
 		
-		if (ictx == null) {
+		if (size == 0) {
 			throw new OperationAbortedException(String.format("There is no valid instruction at %x",addr));
 		}
 		
-		return ictx.getSize();
+		return size;
 	}
 	
 	private int getIndexFromAddr(long addr) {
@@ -202,6 +207,27 @@ public class CodeRange implements AutoCloseable {
 			
 		}
 		
+		//the guess was too far away. (mixed instruction sizes) 
+		//density list is ordered by address. so look it up with binary search
+		return findIndexFromAddr(addr);
+	}
+	
+	private int findIndexFromAddr(long addr) {
+		int lo=0,hi=this.densityList.size()-1,mid;
+		long midAddr;
+		
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			midAddr = this.densityList.get(mid).getAddr();
+			
+			if (midAddr < addr)
+				lo = mid + 1;
+			else if (midAddr > addr)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		
 		return -1;
 	}
 	
@@ -322,48 +348,23 @@ public class CodeRange implements AutoCloseable {
 	}
 	
 	private void putMapIfAvailable(InstructionInfo inst) {
-		List<InstructionInfo> instList;
 		
 		if (this.map == null)
 			return;
 		
-		if (this.map.containsKey(inst.getAddr())) {
-			instList = this.map.get(inst.getAddr());
-			
-			if (!instList.contains(inst)) {
-				instList.add(inst);
-			}
-			else {
-				Log.warning("%p already exists",inst.getAddr());
-			}
-			
-		}
-		else {
-			instList = new ArrayList<InstructionInfo>();
-			instList.add(inst);
-			
-			this.map.put(inst.getAddr(), instList);
+		if (!this.map.put(inst)) {
+			Log.warning("%p already exists",inst.getAddr());
 		}
 	}
 	
 	private void removeMapIfAvailable(InstructionInfo inst) {
-		List<InstructionInfo> instList;
 		
 		if (this.map == null)
 			return;
 		
 		Log.debug("Removing for inst: %x", inst.getAddr());
 		
-		if (this.map.containsKey(inst.getAddr())) {
-			instList = this.map.get(inst.getAddr());
-			
-			for (int i=0;i<instList.size();i++) {
-				if (instList.get(i).getOwnerCodeRange() == this) {
-					instList.remove(i);
-					i--;
-				}
-			}
-		}
+		this.map.removeOwnedBy(inst.getAddr(), this);
 	}
 	
 	private boolean add(long start, int size, boolean singleInstruction) throws InvalidInstructionAddress, OperationAbortedException {
@@ -465,6 +466,7 @@ public class CodeRange implements AutoCloseable {
 		for (InstructionInfo ii : headPartList) {
 			this.putMapIfAvailable(ii);
 			this.densityList.add(nx++, ii);
+			updateAvgInstSize(ii.getSize());
 		}
 		
 		//this.densityList.addAll(0, headPartList);
@@ -534,8 +536,8 @@ public class CodeRange implements AutoCloseable {
 			
 			add(this.rangeEnd,excess,singleInstruction);
 		}
-		else //otherwise its completely overlapped.
-			incrementRangeDensity(addr,size);
+		else //otherwise its completely overlapped. a misaligned block is not applied, it gets its own range
+			return incrementRangeDensity(addr,size);
 		
 		return true;
 	}
@@ -548,6 +550,27 @@ public class CodeRange implements AutoCloseable {
 		return tryApply(instAddr,size,true);
 	}
 	
+	/*
+	 * Appends an already known instruction if its address is the end of the range.
+	 */
+	public boolean appendInstruction(long addr, int size, int density) {
+		InstructionInfo inst;
+		
+		if (addr != this.rangeEnd)
+			return false;
+		
+		inst = new InstructionInfo(this, addr, size, density);
+		
+		this.densityList.add(inst);
+		this.putMapIfAvailable(inst);
+		updateAvgInstSize(size);
+		
+		this.rangeEnd += size;
+		this.rangeSize = this.rangeEnd - this.rangeStart;
+		
+		return true;
+	}
+	
 	public boolean mergeFrom(CodeRange sourceRange) {
 		
 		boolean canBeMerge=false;
@@ -595,21 +618,12 @@ public class CodeRange implements AutoCloseable {
 		}
 	}
 	
-	public boolean paintRange(Painter painter) {
-		
-		for (InstructionInfo inst : this.densityList) {
-			
-			if (!painter.paint(inst))
-				return false;
-		}
-		
-		return true;
+	public final int getInstructionCount() {
+		return this.densityList.size();
 	}
 	
-	public void clearPaint() {
-		for (InstructionInfo inst : this.densityList) {
-			DragonHelper.clearInstructionBackgroundColor(inst.getAddr());
-		}
+	public final InstructionInfo getInstruction(int index) {
+		return this.densityList.get(index);
 	}
 	
 	public void setName(String rangeName) {
@@ -620,6 +634,10 @@ public class CodeRange implements AutoCloseable {
 		return this.rangeStart;
 	}
 	
+	public final long getRangeEnd() {
+		return this.rangeEnd;
+	}
+	
 	public final int getRangeSize() {
 		return (int)this.rangeSize;
 	}
@@ -0,0 +1,160 @@
+package dragondance.eng;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/*
+ * Address ordered list of the painted [start,end) ranges and their colors.
+ * Adjacent ranges of the same color are kept as a single run.
+ */
+public class ColorRunList {
+	private long[] starts;
+	private long[] ends;
+	private Color[] colors;
+	private int count=0;
+	
+	public ColorRunList() {
+		this.starts = new long[256];
+		this.ends = new long[256];
+		this.colors = new Color[256];
+	}
+	
+	/*
+	 * Ranges must be added in the ascending address order. The part of a range
+	 * that overlaps the last run (misaligned instructions) keeps the color of the run.
+	 */
+	public void add(long addr, long size, Color color) {
+		int last = this.count - 1;
+		
+		if (last >= 0 && this.ends[last] > addr) {
+			size -= this.ends[last] - addr;
+			addr = this.ends[last];
+			
+			if (size <= 0)
+				return;
+		}
+		
+		if (last >= 0 && this.ends[last] == addr && this.colors[last].equals(color)) {
+			this.ends[last] += size;
+			return;
+		}
+		
+		if (this.count == this.starts.length) {
+			int newCapacity = this.count * 2;
+			
+			this.starts = Arrays.copyOf(this.starts, newCapacity);
+			this.ends = Arrays.copyOf(this.ends, newCapacity);
+			this.colors = Arrays.copyOf(this.colors, newCapacity);
+		}
+		
+		this.starts[this.count] = addr;
+		this.ends[this.count] = addr + size;
+		this.colors[this.count] = color;
+		this.count++;
+	}
+	
+	public final int size() {
+		return this.count;
+	}
+	
+	public final long getStart(int index) {
+		return this.starts[index];
+	}
+	
+	public final long getEnd(int index) {
+		return this.ends[index];
+	}
+	
+	public final Color getColor(int index) {
+		return this.colors[index];
+	}
+	
+	/*
+	 * Returns the index of the first run that ends after the addr
+	 */
+	public int findIndex(long addr) {
+		int lo=0,hi=this.count - 1,mid;
+		
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			
+			if (this.ends[mid] <= addr)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		
+		return lo;
+	}
+	
+	/*
+	 * Emits the parts of the src runs that are not covered by the sub runs.
+	 * If matchColor is set, only the sub runs of the same color are counted as covering.
+	 * Emitted parts are cleared or painted with the color of the src run.
+	 */
+	private static void subtract(ColorRunList src, ColorRunList sub, boolean matchColor, boolean clear, PaintBatch batch) {
+		long s,e,cur;
+		int j=0,k;
+		
+		for (int i=0;i<src.count;i++) {
+			s = src.starts[i];
+			e = src.ends[i];
+			cur = s;
+			
+			while (j < sub.count && sub.ends[j] <= s)
+				j++;
+			
+			for (k=j; k < sub.count && sub.starts[k] < e; k++) {
+				
+				if (matchColor && !sub.colors[k].equals(src.colors[i]))
+					continue;
+				
+				if (sub.starts[k] > cur)
+					emit(batch, clear, cur, sub.starts[k] - cur, src.colors[i]);
+				
+				if (sub.ends[k] > cur)
+					cur = sub.ends[k];
+			}
+			
+			if (cur < e)
+				emit(batch, clear, cur, e - cur, src.colors[i]);
+		}
+	}
+	
+	private static void emit(PaintBatch batch, boolean clear, long addr, long size, Color color) {
+		if (clear)
+			batch.addClear(addr, size);
+		else
+			batch.add(addr, size, color);
+	}
+	
+	public void paintInto(PaintBatch batch) {
+		for (int i=0;i<this.count;i++) {
+			batch.add(this.starts[i], this.ends[i] - this.starts[i], this.colors[i]);
+		}
+	}
+	
+	public void paintRunInto(PaintBatch batch, int index) {
+		batch.add(this.starts[index], this.ends[index] - this.starts[index], this.colors[index]);
+	}
+	
+	public void clearRunInto(PaintBatch batch, int index) {
+		batch.addClear(this.starts[index], this.ends[index] - this.starts[index]);
+	}
+	
+	public void clearInto(PaintBatch batch) {
+		for (int i=0;i<this.count;i++) {
+			batch.addClear(this.starts[i], this.ends[i] - this.starts[i]);
+		}
+	}
+	
+	/*
+	 * Turns the painted state of the previous runs into this one.
+	 * Addresses only in the previous runs are cleared, addresses with a different
+	 * or no previous color are painted and the rest are not touched.
+	 */
+	public void diffInto(ColorRunList previous, PaintBatch batch) {
+		subtract(previous, this, false, true, batch);
+		subtract(this, previous, true, false, batch);
+	}
+}
@@ -0,0 +1,352 @@
+package dragondance.eng;
+
+import java.util.Arrays;
+
+/*
+ * Compressed bitmap of the covered instructions. Bit positions are the instruction
+ * start offsets relative to the image base.
+ * 
+ * The 64 bit offset space is split into 64K chunks like the Roaring bitmaps do.
+ * High 48 bits of the offset are the chunk key and only the touched chunks are 
+ * kept in a key ordered container list. Each container is a 1024 word bitmap
+ * of its 64K offsets. Covered code is dense in the touched chunks 
+ * so the bitmap containers are used for all chunks.
+ * 
+ * Set operations are done word by word over the containers of the matching keys.
+ */
+public class CoverageBitmap {
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+	private static final int CONTAINER_WORDS = (1 << CHUNK_BITS) / 64;
+	
+	private long[] keys;
+	private long[][] containers;
+	private int count=0;
+	
+	/*
+	 * Iterates the runs of the consecutive set bits in ascending order.
+	 * A run may span over the chunk boundaries.
+	 */
+	public class RunCursor {
+		private int index=0;
+		private long position=0;
+		private long runStart,runEnd;
+		
+		private RunCursor() {
+		}
+		
+		private long nextSetBit(long from) {
+			long key = from >>> CHUNK_BITS;
+			
+			while (this.index < count && keys[this.index] < key)
+				this.index++;
+			
+			while (this.index < count) {
+				long[] words = containers[this.index];
+				int bit = keys[this.index] == key ? (int)(from & CHUNK_MASK) : 0;
+				int wi = bit >>> 6;
+				long w = words[wi] & (-1L << bit);
+				
+				while (true) {
+					if (w != 0)
+						return (keys[this.index] << CHUNK_BITS) + (wi << 6) + Long.numberOfTrailingZeros(w);
+					
+					if (++wi == CONTAINER_WORDS)
+						break;
+					
+					w = words[wi];
+				}
+				
+				this.index++;
+			}
+			
+			return -1;
+		}
+		
+		private long nextClearBit(long from) {
+			//the bit at the "from" is set. so its container is the current one
+			int bit = (int)(from & CHUNK_MASK);
+			
+			while (true) {
+				long[] words = containers[this.index];
+				int wi = bit >>> 6;
+				long w = ~words[wi] & (-1L << bit);
+				
+				while (true) {
+					if (w != 0)
+						return (keys[this.index] << CHUNK_BITS) + (wi << 6) + Long.numberOfTrailingZeros(w);
+					
+					if (++wi == CONTAINER_WORDS)
+						break;
+					
+					w = ~words[wi];
+				}
+				
+				//the run reached the end of the chunk. it continues if the next chunk is adjacent
+				if (this.index + 1 < count && keys[this.index + 1] == keys[this.index] + 1) {
+					this.index++;
+					bit = 0;
+					continue;
+				}
+				
+				return (keys[this.index] + 1) << CHUNK_BITS;
+			}
+		}
+		
+		public boolean next() {
+			long start = nextSetBit(this.position);
+			
+			if (start == -1)
+				return false;
+			
+			this.runStart = start;
+			this.runEnd = nextClearBit(start);
+			this.position = this.runEnd;
+			
+			return true;
+		}
+		
+		public final long getStart() {
+			return this.runStart;
+		}
+		
+		public final long getEnd() {
+			return this.runEnd;
+		}
+		
+		public final int getLength() {
+			return (int)(this.runEnd - this.runStart);
+		}
+	}
+	
+	public CoverageBitmap() {
+		this(4);
+	}
+	
+	private CoverageBitmap(int capacity) {
+		this.keys = new long[capacity];
+		this.containers = new long[capacity][];
+	}
+	
+	private int findKey(long key) {
+		return Arrays.binarySearch(this.keys, 0, this.count, key);
+	}
+	
+	private void insertContainer(int index, long key, long[] words) {
+		
+		if (this.count == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, this.count * 2);
+			this.containers = Arrays.copyOf(this.containers, this.count * 2);
+		}
+		
+		System.arraycopy(this.keys, index, this.keys, index + 1, this.count - index);
+		System.arraycopy(this.containers, index, this.containers, index + 1, this.count - index);
+		
+		this.keys[index] = key;
+		this.containers[index] = words;
+		this.count++;
+	}
+	
+	private long[] getOrCreateContainer(long key) {
+		int index = findKey(key);
+		
+		if (index >= 0)
+			return this.containers[index];
+		
+		long[] words = new long[CONTAINER_WORDS];
+		
+		insertContainer(-index - 1, key, words);
+		
+		return words;
+	}
+	
+	//result containers are produced in key order. so appending is enough
+	private void appendContainer(long key, long[] words) {
+		
+		for (long w : words) {
+			if (w != 0) {
+				insertContainer(this.count, key, words);
+				return;
+			}
+		}
+	}
+	
+	private static void setBits(long[] words, int from, int to) {
+		int fw = from >>> 6, lw = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		
+		if (fw == lw) {
+			words[fw] |= firstMask & lastMask;
+			return;
+		}
+		
+		words[fw] |= firstMask;
+		
+		for (int i=fw+1;i<lw;i++)
+			words[i] = -1L;
+		
+		words[lw] |= lastMask;
+	}
+	
+	public void add(long offset) {
+		int bit = (int)(offset & CHUNK_MASK);
+		
+		getOrCreateContainer(offset >>> CHUNK_BITS)[bit >>> 6] |= 1L << bit;
+	}
+	
+	/*
+	 * Sets the offsets in [start, end)
+	 */
+	public void addRange(long start, long end) {
+		long key,chunkBase,chunkEnd;
+		
+		while (start < end) {
+			key = start >>> CHUNK_BITS;
+			chunkBase = key << CHUNK_BITS;
+			chunkEnd = Math.min(end, chunkBase + (1L << CHUNK_BITS));
+			
+			setBits(getOrCreateContainer(key), (int)(start - chunkBase), (int)(chunkEnd - chunkBase));
+			
+			start = chunkEnd;
+		}
+	}
+	
+	public boolean contains(long offset) {
+		int index = findKey(offset >>> CHUNK_BITS);
+		int bit = (int)(offset & CHUNK_MASK);
+		
+		if (index < 0)
+			return false;
+		
+		return (this.containers[index][bit >>> 6] & (1L << bit)) != 0;
+	}
+	
+	public long getCardinality() {
+		long card=0;
+		
+		for (int i=0;i<this.count;i++) {
+			for (long w : this.containers[i])
+				card += Long.bitCount(w);
+		}
+		
+		return card;
+	}
+	
+	public final boolean isEmpty() {
+		return this.count == 0;
+	}
+	
+	public int getRunCount() {
+		RunCursor cursor = runs();
+		int runs=0;
+		
+		while (cursor.next())
+			runs++;
+		
+		return runs;
+	}
+	
+	public RunCursor runs() {
+		return new RunCursor();
+	}
+	
+	private static final int OP_AND = 0;
+	private static final int OP_OR = 1;
+	private static final int OP_XOR = 2;
+	private static final int OP_AND_NOT = 3;
+	
+	/*
+	 * Combines all bitmaps in a single pass over the union of their chunk keys.
+	 * For the and-not operation the first bitmap is the minuend.
+	 */
+	private static CoverageBitmap combine(int op, CoverageBitmap[] maps) {
+		CoverageBitmap result = new CoverageBitmap();
+		int[] pos = new int[maps.length];
+		long key;
+		long[] words,cw;
+		int present;
+		boolean hasMinuend;
+		
+		while (true) {
+			key = Long.MAX_VALUE;
+			present = 0;
+			
+			for (int i=0;i<maps.length;i++) {
+				if (pos[i] < maps[i].count && maps[i].keys[pos[i]] < key)
+					key = maps[i].keys[pos[i]];
+			}
+			
+			if (key == Long.MAX_VALUE)
+				break;
+			
+			hasMinuend = pos[0] < maps[0].count && maps[0].keys[pos[0]] == key;
+			words = null;
+			
+			for (int i=0;i<maps.length;i++) {
+				
+				if (pos[i] == maps[i].count || maps[i].keys[pos[i]] != key)
+					continue;
+				
+				cw = maps[i].containers[pos[i]++];
+				present++;
+				
+				if (op == OP_AND_NOT && !hasMinuend)
+					continue;
+				
+				if (words == null) {
+					words = cw.clone();
+					continue;
+				}
+				
+				switch (op) {
+				case OP_AND:
+					for (int k=0;k<CONTAINER_WORDS;k++)
+						words[k] &= cw[k];
+					break;
+				case OP_OR:
+					for (int k=0;k<CONTAINER_WORDS;k++)
+						words[k] |= cw[k];
+					break;
+				case OP_XOR:
+					for (int k=0;k<CONTAINER_WORDS;k++)
+						words[k] ^= cw[k];
+					break;
+				case OP_AND_NOT:
+					for (int k=0;k<CONTAINER_WORDS;k++)
+						words[k] &= ~cw[k];
+					break;
+				}
+			}
+			
+			if (op == OP_AND && present != maps.length)
+				continue;
+			
+			if (words != null)
+				result.appendContainer(key, words);
+		}
+		
+		return result;
+	}
+	
+	public static CoverageBitmap and(CoverageBitmap ...maps) {
+		return combine(OP_AND, maps);
+	}
+	
+	public static CoverageBitmap or(CoverageBitmap ...maps) {
+		return combine(OP_OR, maps);
+	}
+	
+	public static CoverageBitmap xor(CoverageBitmap ...maps) {
+		return combine(OP_XOR, maps);
+	}
+	
+	public static CoverageBitmap andNot(CoverageBitmap minuend, CoverageBitmap ...subtrahends) {
+		CoverageBitmap[] maps = new CoverageBitmap[subtrahends.length + 1];
+		
+		maps[0] = minuend;
+		System.arraycopy(subtrahends, 0, maps, 1, subtrahends.length);
+		
+		return combine(OP_AND_NOT, maps);
+	}
+}
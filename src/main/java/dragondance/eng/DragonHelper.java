@@ -3,6 +3,7 @@ package dragondance.eng;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -42,7 +43,9 @@ import ghidra.framework.plugintool.PluginTool;
 import ghidra.program.flatapi.FlatProgramAPI;
 import ghidra.program.model.address.Address;
 import ghidra.program.model.address.AddressSet;
+import ghidra.program.model.address.AddressSetView;
 import ghidra.program.model.listing.CodeUnit;
+import ghidra.program.model.listing.Function;
 import ghidra.program.model.listing.Instruction;
 import ghidra.program.model.mem.MemoryBlock;
 import ghidra.util.Msg;
@@ -55,11 +58,20 @@ public class DragonHelper {
 	private static PluginTool tool = null;
 	private static FlatProgramAPI fapi = null;
 	private static GThreadPool tpool = null;
+	private static GhidraProgramView programView = null;
 	
+	//sorted [start,end] offset pairs of the executable memory blocks (end inclusive)
+	private static volatile long[] execBlockRanges = null;
 	
-	public static void init(PluginTool pluginTool, FlatProgramAPI api) {
+	
+	public static synchronized void init(PluginTool pluginTool, FlatProgramAPI api) {
 		DragonHelper.tool = pluginTool;
 		DragonHelper.fapi = api;
+		
+		//the view of the new program is created on first use
+		programView = null;
+		
+		invalidateExecutableBlockIndex();
 	}
 	
 	public static int startTransaction(String name) {
@@ -120,7 +132,7 @@ public class DragonHelper {
 	}
 	
 	public static String getProgramName() {
-		return fapi.getCurrentProgram().getDomainFile().getName();
+		return getProgramView().getProgramName();
 	}
 	
 	
@@ -153,14 +165,18 @@ public class DragonHelper {
 	}
 	
 	public static void showMessage(String message, Object...args) {
-		if (isUiDispatchThread())
+		if (GraphicsEnvironment.isHeadless())
+			System.out.println(String.format(message, args));
+		else if (isUiDispatchThread())
 			Msg.showInfo(DragonHelper.class, null, "Dragon Dance", String.format(message, args));
 		else
 			showMessageOnSwingThread(message,args);
 	}
 	
 	public static void showWarning(String message, Object...args) {
-		if (isUiDispatchThread())
+		if (GraphicsEnvironment.isHeadless())
+			System.err.println(String.format(message, args));
+		else if (isUiDispatchThread())
 			Msg.showWarn(DragonHelper.class, null, "Dragon Dance", String.format(message, args));
 		else
 			showWarningOnSwingThread(message,args);
@@ -225,7 +241,7 @@ public class DragonHelper {
 	}
 	
 	public static boolean isValidExecutableSectionAddress(long addr) {
-		if (addr < getImageBase().getOffset())
+		if (addr < getImageBaseOffset())
 			return false;
 		
 		if (addr >= getImageEnd().getOffset())
@@ -258,7 +274,28 @@ public class DragonHelper {
 		return fapi.toAddr(addrValue);
 	}
 	
+	/*
+	 * Returns the lowest and the highest address of the function that contains the addr
+	 */
+	public static long[] getFunctionRange(long addr) {
+		Function func;
+		AddressSetView body;
+		
+		func = fapi.getFunctionContaining(getAddress(addr));
+		
+		if (func == null)
+			return null;
+		
+		body = func.getBody();
+		
+		return new long[] {body.getMinAddress().getOffset(), body.getMaxAddress().getOffset()};
+	}
+	
 	public static String askFile(Component parent, String title, String okButtonText) {
+		return askFile(parent, title, okButtonText, true);
+	}
+	
+	public static String askFile(Component parent, String title, String okButtonText, boolean mustExist) {
 		
 		GhidraFileChooser gfc = new GhidraFileChooser(parent);
 		
@@ -277,7 +314,7 @@ public class DragonHelper {
 			return null;
 		}
 		
-		if (!file.exists())
+		if (mustExist && !file.exists())
 			return null;
 		
 		Globals.LastFileDialogPath =  Util.getDirectoryOfFile(file.getAbsolutePath());
@@ -288,6 +325,42 @@ public class DragonHelper {
 		return file.getAbsolutePath();
 	}
 	
+	public static List<String> askFiles(Component parent, String title, String okButtonText) {
+		List<String> files = new ArrayList<String>();
+		List<File> selectedFiles;
+		
+		GhidraFileChooser gfc = new GhidraFileChooser(parent);
+		
+		if (!Globals.LastFileDialogPath.isEmpty()) {
+			File def = new File(Globals.LastFileDialogPath);
+			gfc.setSelectedFile(def);
+		}
+		
+		gfc.setTitle(title);
+		gfc.setApproveButtonText(okButtonText);
+		gfc.setFileSelectionMode(GhidraFileChooserMode.FILES_ONLY);
+		gfc.setMultiSelectionEnabled(true);
+		
+		selectedFiles = gfc.getSelectedFiles();
+		
+		if (selectedFiles == null)
+			return files;
+		
+		for (File file : selectedFiles) {
+			if (file.exists())
+				files.add(file.getAbsolutePath());
+		}
+		
+		if (!files.isEmpty()) {
+			Globals.LastFileDialogPath =  Util.getDirectoryOfFile(files.get(0));
+			
+			if (Globals.LastFileDialogPath == null)
+				Globals.LastFileDialogPath = System.getProperty("user.dir");
+		}
+		
+		return files;
+	}
+	
 	public static AddressSet makeAddressSet(long addr, int size) {
 		Address bAddr, eAddr;
 		
@@ -301,16 +374,40 @@ public class DragonHelper {
 	}
 	
 	public static String getExecutableMD5Hash() {
-		return fapi.getCurrentProgram().getExecutableMD5();
+		return getProgramView().getExecutableMD5();
 	}
 	
 	public static Address getImageBase() {
-		if (Globals.WithoutGhidra)
-			return getAddress(0x10000000);
-		
 		return fapi.getCurrentProgram().getImageBase();
 	}
 	
+	public static long getImageBaseOffset() {
+		return getProgramView().getImageBase();
+	}
+	
+	/*
+	 * Returns the program view of the current program. Missing instructions are
+	 * resolved interactively (the user is asked to disassemble them).
+	 * Code that runs without ghidra builds its coverages against its own view.
+	 */
+	public static synchronized ProgramView getProgramView() {
+		if (programView == null) {
+			programView = new GhidraProgramView(fapi.getCurrentProgram()) {
+				@Override
+				protected int getUncachedInstructionSize(long addr) throws InvalidInstructionAddress {
+					InstructionContext ictx = getInstruction(addr,true);
+					
+					if (ictx == null)
+						return 0;
+					
+					return ictx.getSize();
+				}
+			};
+		}
+		
+		return programView;
+	}
+	
 	public static Address getImageEnd() {
 		return fapi.getCurrentProgram().getMaxAddress();
 	}
@@ -323,6 +420,33 @@ public class DragonHelper {
 		return getInstruction(addr,throwEx,false);
 	}
 	
+	/*
+	 * Cached instructions may be changed by the user or the analyzers.
+	 * The cache is rebuilt on next use.
+	 */
+	public static synchronized void invalidateInstructionSizeCache() {
+		if (programView != null)
+			programView.invalidate();
+	}
+	
+	public static synchronized void invalidateInstructionRange(long start, long end) {
+		if (programView != null)
+			programView.invalidateRange(start, end);
+	}
+	
+	public static synchronized void invalidateFunctionTable() {
+		if (programView != null)
+			programView.invalidateFunctions();
+	}
+	
+	/*
+	 * Returns the instruction length from the instruction size cache of the current program.
+	 * Falls back to the listing if the address is not there (not disassembled yet etc.)
+	 */
+	public static int getInstructionSize(long addr) throws InvalidInstructionAddress {
+		return getProgramView().getInstructionSize(addr);
+	}
+	
 	private static InstructionContext getInstructionNoThrow(Address addr, boolean icall) {
 		InstructionContext inst = null;
 		
@@ -447,22 +571,67 @@ public class DragonHelper {
 		return memList;
 	}
 	
-	public static boolean isCodeSectionAddress(long addr) {
-		//.text, .init .fini __text
-		boolean status=false;
+	private static synchronized long[] buildExecutableBlockIndex() {
+		List<MemoryBlock> execBlocks;
+		long[] ranges;
+		int i=0;
+		
+		if (execBlockRanges != null)
+			return execBlockRanges;
+		
+		execBlocks = getExecutableMemoryBlocks();
 		
-		List<MemoryBlock> execBlocks = getExecutableMemoryBlocks();
+		execBlocks.sort((b1,b2) -> Long.compare(b1.getStart().getOffset(), b2.getStart().getOffset()));
+		
+		ranges = new long[execBlocks.size() * 2];
 		
 		for (MemoryBlock mb : execBlocks) {
-			if (addr >= mb.getStart().getOffset() && addr < mb.getEnd().getOffset()) {
-				status=true;
-				break;
-			}
+			ranges[i++] = mb.getStart().getOffset();
+			ranges[i++] = mb.getEnd().getOffset();
 		}
 		
 		execBlocks.clear();
 		
-		return status;
+		execBlockRanges = ranges;
+		
+		return ranges;
+	}
+	
+	/*
+	 * Memory blocks may be added, removed or moved. The index is rebuilt on next use.
+	 * It takes the build lock, so a build in progress can not publish its stale index after it.
+	 */
+	public static synchronized void invalidateExecutableBlockIndex() {
+		execBlockRanges = null;
+	}
+	
+	public static boolean isCodeSectionAddress(long addr) {
+		//.text, .init .fini __text
+		long[] ranges;
+		int lo,hi,mid;
+		
+		ranges = execBlockRanges;
+		
+		if (ranges == null)
+			ranges = buildExecutableBlockIndex();
+		
+		//find the last block starts at or before the addr
+		lo = 0;
+		hi = (ranges.length / 2) - 1;
+		
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			
+			if (ranges[mid * 2] <= addr)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		
+		if (hi < 0)
+			return false;
+		
+		return addr <= ranges[hi * 2 + 1];
 	}
 	
 	public static boolean isInDisassembledRange(long addr) {
@@ -520,11 +689,19 @@ public class DragonHelper {
 		return false;
 	}
 	
+	public static ColorizingService getColorizingService() {
+		
+		if (tool == null)
+			return null;
+		
+		return tool.getService(ColorizingService.class);
+	}
+	
 	public static boolean setInstructionBackgroundColor(long addr, Color color) {
 		
 		Address ba;
 		
-		ColorizingService colorService = tool.getService(ColorizingService.class);
+		ColorizingService colorService = getColorizingService();
 		
 		if (colorService == null) {
 			return false;
@@ -541,7 +718,7 @@ public class DragonHelper {
 		
 		Address ba;
 		
-		ColorizingService colorService = tool.getService(ColorizingService.class);
+		ColorizingService colorService = getColorizingService();
 		
 		if (colorService == null) {
 			return false;
@@ -0,0 +1,196 @@
+package dragondance.eng;
+
+import java.util.Arrays;
+
+/*
+ * Per function aggregation of a coverage. Covered instruction count, summed
+ * and max density of each function of a function table are kept in primitive arrays.
+ * It is filled in one pass by adding the covered instructions in the address order
+ * while sweeping the sorted body ranges of the function table along. An instruction
+ * out of the order moves the sweep position back with a binary search.
+ */
+public class FunctionCoverageIndex {
+	public static final int SORT_BY_COVERED = 0;
+	public static final int SORT_BY_INSTRUCTIONS = 1;
+	public static final int SORT_BY_DENSITY_SUM = 2;
+	public static final int SORT_BY_MAX_DENSITY = 3;
+	public static final int SORT_BY_COVERAGE_RATIO = 4;
+	public static final int SORT_BY_ENTRY_POINT = 5;
+	
+	//coverage ratios are ranked in this resolution
+	private static final long RATIO_SCALE = 1000000;
+	
+	private FunctionTable table;
+	private int[] covered;
+	private long[] densitySums;
+	private int[] maxDensities;
+	private int coveredFunctionCount=0;
+	private int unattributedCount=0;
+	
+	//sweep position in the body ranges
+	private int cursor=0;
+	private long lastAddr=Long.MIN_VALUE;
+	
+	public FunctionCoverageIndex(FunctionTable table) {
+		this.table = table;
+		this.covered = new int[table.getFunctionCount()];
+		this.densitySums = new long[table.getFunctionCount()];
+		this.maxDensities = new int[table.getFunctionCount()];
+	}
+	
+	/*
+	 * Returns the index of the first body range that ends after the addr
+	 */
+	private int seek(long addr) {
+		int lo=0,hi=this.table.getRangeCount() - 1,mid;
+		
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			
+			if (this.table.getRangeEnd(mid) <= addr)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		
+		return lo;
+	}
+	
+	/*
+	 * Adds a covered instruction. Adding them in the ascending address order is the fastest.
+	 * An instruction out of the all function bodies is only counted as unattributed.
+	 */
+	public void add(long addr, int density) {
+		int rangeCount = this.table.getRangeCount();
+		int func;
+		
+		if (addr < this.lastAddr)
+			this.cursor = seek(addr);
+		
+		this.lastAddr = addr;
+		
+		while (this.cursor < rangeCount && this.table.getRangeEnd(this.cursor) <= addr)
+			this.cursor++;
+		
+		if (this.cursor == rangeCount || this.table.getRangeStart(this.cursor) > addr) {
+			this.unattributedCount++;
+			return;
+		}
+		
+		func = this.table.getRangeFunction(this.cursor);
+		
+		if (this.covered[func]++ == 0)
+			this.coveredFunctionCount++;
+		
+		this.densitySums[func] += density;
+		
+		if (density > this.maxDensities[func])
+			this.maxDensities[func] = density;
+	}
+	
+	public final FunctionTable getFunctionTable() {
+		return this.table;
+	}
+	
+	public final int getFunctionCount() {
+		return this.table.getFunctionCount();
+	}
+	
+	public final int getCoveredFunctionCount() {
+		return this.coveredFunctionCount;
+	}
+	
+	/*
+	 * Returns the count of the covered instructions that are not in any function body
+	 */
+	public final int getUnattributedCount() {
+		return this.unattributedCount;
+	}
+	
+	public final String getName(int function) {
+		return this.table.getName(function);
+	}
+	
+	public final long getEntryPoint(int function) {
+		return this.table.getEntryPoint(function);
+	}
+	
+	public final int getInstructionCount(int function) {
+		return this.table.getInstructionCount(function);
+	}
+	
+	public final int getCoveredCount(int function) {
+		return this.covered[function];
+	}
+	
+	public final long getDensitySum(int function) {
+		return this.densitySums[function];
+	}
+	
+	public final int getMaxDensity(int function) {
+		return this.maxDensities[function];
+	}
+	
+	/*
+	 * Covered instruction ratio of the function in [0,1]. Functions with no known
+	 * instructions (not disassembled) are as covered as their covered instructions say.
+	 */
+	public double getCoverageRatio(int function) {
+		int total = this.table.getInstructionCount(function);
+		
+		if (total == 0)
+			return this.covered[function] > 0 ? 1.0 : 0.0;
+		
+		return Math.min(1.0, (double)this.covered[function] / total);
+	}
+	
+	private long getSortKey(int function, int sortBy) {
+		switch (sortBy) {
+		case SORT_BY_COVERED:
+			return this.covered[function];
+		case SORT_BY_INSTRUCTIONS:
+			return this.table.getInstructionCount(function);
+		case SORT_BY_DENSITY_SUM:
+			return this.densitySums[function];
+		case SORT_BY_MAX_DENSITY:
+			return this.maxDensities[function];
+		case SORT_BY_COVERAGE_RATIO:
+			return (long)(getCoverageRatio(function) * RATIO_SCALE);
+		case SORT_BY_ENTRY_POINT:
+			//functions are indexed in the entry point order
+			return function;
+		}
+		
+		throw new IllegalArgumentException("unknown sort key: " + sortBy);
+	}
+	
+	/*
+	 * Returns the function indexes ordered by the sort key. Keys and indexes are packed
+	 * into longs and sorted as primitives, so ranking does not create an object per function.
+	 * Functions with the same key stay in the entry point order.
+	 */
+	public int[] rank(int sortBy, boolean descending) {
+		int count = this.table.getFunctionCount();
+		int indexBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(count));
+		long maxKey = (1L << (63 - indexBits)) - 1;
+		long[] packed = new long[count];
+		int[] order = new int[count];
+		long key;
+		
+		for (int i=0;i<count;i++) {
+			key = Math.min(getSortKey(i, sortBy), maxKey);
+			
+			if (descending)
+				key = maxKey - key;
+			
+			packed[i] = (key << indexBits) | i;
+		}
+		
+		Arrays.sort(packed);
+		
+		for (int i=0;i<count;i++)
+			order[i] = (int)(packed[i] & ((1L << indexBits) - 1));
+		
+		return order;
+	}
+}
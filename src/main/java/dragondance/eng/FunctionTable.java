@@ -0,0 +1,186 @@
+package dragondance.eng;
+
+import java.util.Arrays;
+
+import dragondance.Log;
+import ghidra.program.model.address.AddressRange;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.FunctionIterator;
+import ghidra.program.model.listing.Program;
+
+/*
+ * Function bodies of a program as primitive arrays.
+ * Body ranges of the all functions are flattened into a single start address
+ * sorted range table, so the covered instructions of a coverage can be attributed
+ * to their functions by sweeping both of them once.
+ */
+public class FunctionTable {
+	
+	//flattened body ranges. [start,end) sorted by the start
+	private long[] rangeStarts;
+	private long[] rangeEnds;
+	private int[] rangeFunctions;
+	private int rangeCount=0;
+	
+	private long[] entryPoints;
+	private String[] names;
+	private int[] instructionCounts;
+	private int functionCount=0;
+	
+	FunctionTable(int functionCapacity) {
+		functionCapacity = Math.max(functionCapacity, 16);
+		
+		this.entryPoints = new long[functionCapacity];
+		this.names = new String[functionCapacity];
+		this.instructionCounts = new int[functionCapacity];
+		
+		this.rangeStarts = new long[functionCapacity];
+		this.rangeEnds = new long[functionCapacity];
+		this.rangeFunctions = new int[functionCapacity];
+	}
+	
+	/*
+	 * Builds the function table of the program. Instruction counts of the bodies
+	 * are taken from the instruction size cache of the program.
+	 */
+	static FunctionTable build(Program program, InstructionSizeCache instSizeCache) {
+		FunctionTable table;
+		FunctionIterator iter;
+		Function func;
+		long beginTime;
+		int index;
+		
+		beginTime = System.nanoTime();
+		
+		table = new FunctionTable(program.getFunctionManager().getFunctionCount());
+		
+		iter = program.getFunctionManager().getFunctions(true);
+		
+		while (iter.hasNext()) {
+			func = iter.next();
+			
+			index = table.addFunction(func.getEntryPoint().getOffset(), func.getName());
+			
+			for (AddressRange range : func.getBody()) {
+				long start = range.getMinAddress().getOffset();
+				long end = range.getMaxAddress().getOffset() + 1;
+				
+				table.addRange(start, end, index);
+				table.instructionCounts[index] += instSizeCache.countRange(start, end);
+			}
+		}
+		
+		table.sortRanges();
+		
+		Log.info("%d functions (%d body ranges) indexed in %d ms", table.functionCount, table.rangeCount,
+				(System.nanoTime() - beginTime) / 1000000);
+		
+		return table;
+	}
+	
+	int addFunction(long entryPoint, String name) {
+		
+		if (this.functionCount == this.entryPoints.length) {
+			int newCapacity = this.functionCount * 2;
+			
+			this.entryPoints = Arrays.copyOf(this.entryPoints, newCapacity);
+			this.names = Arrays.copyOf(this.names, newCapacity);
+			this.instructionCounts = Arrays.copyOf(this.instructionCounts, newCapacity);
+		}
+		
+		this.entryPoints[this.functionCount] = entryPoint;
+		this.names[this.functionCount] = name;
+		this.instructionCounts[this.functionCount] = 0;
+		
+		return this.functionCount++;
+	}
+	
+	void addRange(long start, long end, int function) {
+		
+		if (this.rangeCount == this.rangeStarts.length) {
+			int newCapacity = this.rangeCount * 2;
+			
+			this.rangeStarts = Arrays.copyOf(this.rangeStarts, newCapacity);
+			this.rangeEnds = Arrays.copyOf(this.rangeEnds, newCapacity);
+			this.rangeFunctions = Arrays.copyOf(this.rangeFunctions, newCapacity);
+		}
+		
+		this.rangeStarts[this.rangeCount] = start;
+		this.rangeEnds[this.rangeCount] = end;
+		this.rangeFunctions[this.rangeCount] = function;
+		this.rangeCount++;
+	}
+	
+	/*
+	 * Functions are iterated in the entry point order but their body ranges
+	 * may be scattered (e.g. shared or out of line chunks). Sorts the ranges by their start.
+	 */
+	void sortRanges() {
+		Integer[] order;
+		long[] starts,ends;
+		int[] funcs;
+		boolean ordered=true;
+		
+		for (int i=1;i<this.rangeCount && ordered;i++)
+			ordered = this.rangeStarts[i - 1] <= this.rangeStarts[i];
+		
+		if (ordered)
+			return;
+		
+		order = new Integer[this.rangeCount];
+		
+		for (int i=0;i<this.rangeCount;i++)
+			order[i] = i;
+		
+		Arrays.sort(order, (a, b) -> Long.compare(this.rangeStarts[a], this.rangeStarts[b]));
+		
+		starts = new long[this.rangeCount];
+		ends = new long[this.rangeCount];
+		funcs = new int[this.rangeCount];
+		
+		for (int i=0;i<this.rangeCount;i++) {
+			starts[i] = this.rangeStarts[order[i]];
+			ends[i] = this.rangeEnds[order[i]];
+			funcs[i] = this.rangeFunctions[order[i]];
+		}
+		
+		this.rangeStarts = starts;
+		this.rangeEnds = ends;
+		this.rangeFunctions = funcs;
+	}
+	
+	public final int getFunctionCount() {
+		return this.functionCount;
+	}
+	
+	public final String getName(int function) {
+		return this.names[function];
+	}
+	
+	public final long getEntryPoint(int function) {
+		return this.entryPoints[function];
+	}
+	
+	/*
+	 * Returns the count of the disassembled instructions in the body of the function
+	 */
+	public final int getInstructionCount(int function) {
+		return this.instructionCounts[function];
+	}
+	
+	final int getRangeCount() {
+		return this.rangeCount;
+	}
+	
+	final long getRangeStart(int range) {
+		return this.rangeStarts[range];
+	}
+	
+	final long getRangeEnd(int range) {
+		return this.rangeEnds[range];
+	}
+	
+	final int getRangeFunction(int range) {
+		return this.rangeFunctions[range];
+	}
+}
@@ -0,0 +1,252 @@
+package dragondance.eng;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import dragondance.exceptions.InvalidInstructionAddress;
+import ghidra.program.model.address.Address;
+import ghidra.program.model.listing.Instruction;
+import ghidra.program.model.listing.Program;
+
+/*
+ * Program view of a ghidra program. Instruction lengths are served from
+ * an instruction size cache that is built on first use.
+ */
+public class GhidraProgramView implements ProgramView {
+	private Program program;
+	
+	//read on every instruction lookup. built once under the lock
+	private volatile InstructionSizeCache instSizeCache=null;
+	private volatile FunctionTable functionTable=null;
+	
+	private final Object instSizeCacheLock = new Object();
+	private final Object functionTableLock = new Object();
+	
+	//publishing and dropping the function table. never held during a build
+	private final Object functionTableStateLock = new Object();
+	
+	//bumped by every drop of the function table. guarded by the functionTableStateLock
+	private int functionTableGeneration=0;
+	
+	//changed code ranges [start,end] that are not merged into the cache yet. guarded by the instSizeCacheLock
+	private long[] dirtyStarts = new long[16];
+	private long[] dirtyEnds = new long[16];
+	private int dirtyCount=0;
+	private volatile boolean dirty=false;
+	
+	//the cache is rebuilt instead of being patched if this many ranges are changed
+	private static final int MAX_DIRTY_RANGES = 1 << 16;
+	
+	public GhidraProgramView(Program program) {
+		this.program = program;
+	}
+	
+	public final Program getProgram() {
+		return this.program;
+	}
+	
+	@Override
+	public String getProgramName() {
+		return this.program.getDomainFile().getName();
+	}
+	
+	@Override
+	public String getExecutableMD5() {
+		return this.program.getExecutableMD5();
+	}
+	
+	@Override
+	public long getImageBase() {
+		return this.program.getImageBase().getOffset();
+	}
+	
+	private InstructionSizeCache getInstructionSizeCache() {
+		InstructionSizeCache cache = this.instSizeCache;
+		
+		if (cache != null && !this.dirty)
+			return cache;
+		
+		synchronized (this.instSizeCacheLock) {
+			if (this.instSizeCache == null) {
+				this.instSizeCache = InstructionSizeCache.build(this.program);
+			}
+			else if (this.dirty) {
+				//the readers keep using the old cache until the patched one is published
+				mergeDirtyRanges();
+				this.instSizeCache = this.instSizeCache.patch(this.program, this.dirtyStarts, this.dirtyEnds, this.dirtyCount);
+			}
+			
+			this.dirtyCount = 0;
+			this.dirty = false;
+			
+			return this.instSizeCache;
+		}
+	}
+	
+	/*
+	 * Sorts the dirty ranges and joins the overlapping and adjacent ones
+	 */
+	private void mergeDirtyRanges() {
+		long[] packed;
+		int n=0;
+		
+		if (this.dirtyCount < 2)
+			return;
+		
+		Integer[] order = new Integer[this.dirtyCount];
+		
+		for (int i=0;i<this.dirtyCount;i++)
+			order[i] = i;
+		
+		Arrays.sort(order, (a, b) -> Long.compare(this.dirtyStarts[a], this.dirtyStarts[b]));
+		
+		packed = new long[this.dirtyCount * 2];
+		
+		for (int i : order) {
+			if (n > 0 && this.dirtyStarts[i] <= packed[n - 1] + 1) {
+				packed[n - 1] = Math.max(packed[n - 1], this.dirtyEnds[i]);
+				continue;
+			}
+			
+			packed[n++] = this.dirtyStarts[i];
+			packed[n++] = this.dirtyEnds[i];
+		}
+		
+		for (int i=0;i<n/2;i++) {
+			this.dirtyStarts[i] = packed[i*2];
+			this.dirtyEnds[i] = packed[i*2+1];
+		}
+		
+		this.dirtyCount = n / 2;
+	}
+	
+	@Override
+	public String getListingStamp() {
+		return Long.toHexString(getInstructionSizeCache().getStamp());
+	}
+	
+	@Override
+	public FunctionTable getFunctionTable() {
+		FunctionTable table = this.functionTable;
+		int generation;
+		
+		if (table != null)
+			return table;
+		
+		//instruction lookups do not wait for the function table
+		synchronized (this.functionTableLock) {
+			
+			synchronized (this.functionTableStateLock) {
+				if (this.functionTable != null)
+					return this.functionTable;
+				
+				generation = this.functionTableGeneration;
+			}
+			
+			table = FunctionTable.build(this.program, getInstructionSizeCache());
+			
+			//a table that is dropped during the build is not published, the next call builds it again
+			synchronized (this.functionTableStateLock) {
+				if (generation == this.functionTableGeneration)
+					this.functionTable = table;
+			}
+			
+			return table;
+		}
+	}
+	
+	private void dropFunctionTable() {
+		synchronized (this.functionTableStateLock) {
+			this.functionTable = null;
+			this.functionTableGeneration++;
+		}
+	}
+	
+	/*
+	 * Cached instructions may be changed by the user or the analyzers.
+	 * The caches are rebuilt on next use.
+	 */
+	public void invalidate() {
+		synchronized (this.instSizeCacheLock) {
+			this.instSizeCache = null;
+			this.dirtyCount = 0;
+			this.dirty = false;
+		}
+		
+		dropFunctionTable();
+	}
+	
+	/*
+	 * Code in the [start,end] range was added, removed or replaced. The range is
+	 * re-read from the listing on next use, the rest of the cache is kept.
+	 */
+	public void invalidateRange(long start, long end) {
+		synchronized (this.instSizeCacheLock) {
+			
+			if (this.instSizeCache == null)
+				return;
+			
+			if (this.dirtyCount == MAX_DIRTY_RANGES) {
+				invalidate();
+				return;
+			}
+			
+			if (this.dirtyCount == this.dirtyStarts.length) {
+				this.dirtyStarts = Arrays.copyOf(this.dirtyStarts, this.dirtyCount * 2);
+				this.dirtyEnds = Arrays.copyOf(this.dirtyEnds, this.dirtyCount * 2);
+			}
+			
+			this.dirtyStarts[this.dirtyCount] = start;
+			this.dirtyEnds[this.dirtyCount] = end;
+			this.dirtyCount++;
+			this.dirty = true;
+		}
+		
+		//instruction counts of the functions may be changed
+		dropFunctionTable();
+	}
+	
+	/*
+	 * Functions were created, removed or their bodies changed.
+	 * Function table is rebuilt on next use.
+	 */
+	public void invalidateFunctions() {
+		dropFunctionTable();
+	}
+	
+	/*
+	 * Called for the addresses that are not in the instruction size cache
+	 * (not disassembled yet etc.). Looks up the listing by default.
+	 */
+	protected int getUncachedInstructionSize(long addr) throws InvalidInstructionAddress {
+		Address address = this.program.getAddressFactory().getDefaultAddressSpace().getAddress(addr);
+		Instruction inst = this.program.getListing().getInstructionAt(address);
+		
+		if (inst == null)
+			return 0;
+		
+		return inst.getLength();
+	}
+	
+	@Override
+	public int getInstructionSize(long addr) throws InvalidInstructionAddress {
+		int size = getInstructionSizeCache().getSize(addr);
+		
+		if (size > 0)
+			return size;
+		
+		return getUncachedInstructionSize(addr);
+	}
+	
+	/*
+	 * Writes the instruction length table of the program. It can be loaded
+	 * with InstructionTableView to build the coverages without ghidra.
+	 */
+	public int exportInstructionTable(String file) throws IOException {
+		InstructionSizeCache table = getInstructionSizeCache();
+		
+		InstructionTableView.write(file, getProgramName(), getExecutableMD5(), getImageBase(), table);
+		
+		return table.size();
+	}
+}
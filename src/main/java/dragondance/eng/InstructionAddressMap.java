@@ -0,0 +1,254 @@
+package dragondance.eng;
+
+import java.util.Arrays;
+
+/*
+ * Open addressing hash map from instruction address to the instruction info object(s).
+ * 
+ * Keys are primitive longs. So there is no boxing on insert, lookup or iteration.
+ * An address is usually owned by only one code range. In that case the slot holds
+ * the InstructionInfo itself. While the ranges are being merged an address can be
+ * owned by more than one range for a short time. Only then the slot holds 
+ * a small InstructionInfo array.
+ */
+public class InstructionAddressMap {
+	private static final int MIN_CAPACITY = 16;
+	
+	private long[] keys;
+	private Object[] values;
+	private int size=0;
+	private int mask;
+	private int shift;
+	
+	public InstructionAddressMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	public InstructionAddressMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		
+		//keep the load factor under the 0.5
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+		this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+	
+	private int idealSlot(long key) {
+		//fibonacci hashing. spreads the sequential instruction addresses well
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> this.shift);
+	}
+	
+	private int findSlot(long key) {
+		int slot = idealSlot(key);
+		
+		while (this.values[slot] != null) {
+			if (this.keys[slot] == key)
+				return slot;
+			
+			slot = (slot + 1) & this.mask;
+		}
+		
+		return -1;
+	}
+	
+	private void grow() {
+		long[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		int slot;
+		
+		allocate(oldKeys.length * 2);
+		
+		for (int i=0;i<oldKeys.length;i++) {
+			if (oldValues[i] == null)
+				continue;
+			
+			slot = idealSlot(oldKeys[i]);
+			
+			while (this.values[slot] != null)
+				slot = (slot + 1) & this.mask;
+			
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+		}
+	}
+	
+	private void removeSlot(int slot) {
+		int gap = slot, next = (slot + 1) & this.mask, ideal;
+		
+		//backward shift deletion. moves the following cluster members into the gap
+		//if their ideal slot does not lie between the gap and their current slot
+		while (this.values[next] != null) {
+			ideal = idealSlot(this.keys[next]);
+			
+			if (((next - ideal) & this.mask) >= ((next - gap) & this.mask)) {
+				this.keys[gap] = this.keys[next];
+				this.values[gap] = this.values[next];
+				gap = next;
+			}
+			
+			next = (next + 1) & this.mask;
+		}
+		
+		this.values[gap] = null;
+		this.size--;
+	}
+	
+	/*
+	 * Puts the instruction under its address. Returns false if the 
+	 * same instruction object already exists in the map.
+	 */
+	public boolean put(InstructionInfo inst) {
+		final long key = inst.getAddr();
+		int slot = idealSlot(key);
+		Object value;
+		
+		while ((value = this.values[slot]) != null) {
+			
+			if (this.keys[slot] == key) {
+				
+				if (value == inst)
+					return false;
+				
+				if (value instanceof InstructionInfo) {
+					this.values[slot] = new InstructionInfo[] { (InstructionInfo)value, inst };
+					return true;
+				}
+				
+				InstructionInfo[] owners = (InstructionInfo[])value;
+				
+				for (InstructionInfo owner : owners) {
+					if (owner == inst)
+						return false;
+				}
+				
+				owners = Arrays.copyOf(owners, owners.length + 1);
+				owners[owners.length - 1] = inst;
+				this.values[slot] = owners;
+				
+				return true;
+			}
+			
+			slot = (slot + 1) & this.mask;
+		}
+		
+		this.keys[slot] = key;
+		this.values[slot] = inst;
+		
+		if (++this.size * 2 > this.keys.length)
+			grow();
+		
+		return true;
+	}
+	
+	/*
+	 * Removes the instructions at the address which are owned by the given range.
+	 * The address is removed completely if there is no other owner left.
+	 */
+	public void removeOwnedBy(long addr, CodeRange owner) {
+		int slot = findSlot(addr);
+		int remain=0;
+		
+		if (slot == -1)
+			return;
+		
+		Object value = this.values[slot];
+		
+		if (value instanceof InstructionInfo) {
+			if (((InstructionInfo)value).getOwnerCodeRange() == owner)
+				removeSlot(slot);
+			
+			return;
+		}
+		
+		InstructionInfo[] owners = (InstructionInfo[])value;
+		
+		for (InstructionInfo inst : owners) {
+			if (inst.getOwnerCodeRange() != owner)
+				owners[remain++] = inst;
+		}
+		
+		if (remain == 0)
+			removeSlot(slot);
+		else if (remain == 1)
+			this.values[slot] = owners[0];
+		else if (remain != owners.length)
+			this.values[slot] = Arrays.copyOf(owners, remain);
+	}
+	
+	public boolean containsKey(long addr) {
+		return findSlot(addr) != -1;
+	}
+	
+	/*
+	 * Returns the first owned instruction at the address.
+	 */
+	public InstructionInfo get(long addr) {
+		int slot = findSlot(addr);
+		
+		if (slot == -1)
+			return null;
+		
+		return valueAt(slot);
+	}
+	
+	public InstructionInfo[] getAll(long addr) {
+		int slot = findSlot(addr);
+		
+		if (slot == -1)
+			return new InstructionInfo[0];
+		
+		Object value = this.values[slot];
+		
+		if (value instanceof InstructionInfo)
+			return new InstructionInfo[] { (InstructionInfo)value };
+		
+		return ((InstructionInfo[])value).clone();
+	}
+	
+	/*
+	 * Slot iteration. Starts with nextSlot(-1) and lasts until it returns -1
+	 */
+	public int nextSlot(int slot) {
+		
+		while (++slot < this.values.length) {
+			if (this.values[slot] != null)
+				return slot;
+		}
+		
+		return -1;
+	}
+	
+	public final long keyAt(int slot) {
+		return this.keys[slot];
+	}
+	
+	public final InstructionInfo valueAt(int slot) {
+		Object value = this.values[slot];
+		
+		if (value instanceof InstructionInfo)
+			return (InstructionInfo)value;
+		
+		return ((InstructionInfo[])value)[0];
+	}
+	
+	public final int size() {
+		return this.size;
+	}
+	
+	public final boolean isEmpty() {
+		return this.size == 0;
+	}
+	
+	public void clear() {
+		allocate(MIN_CAPACITY);
+		this.size = 0;
+	}
+}
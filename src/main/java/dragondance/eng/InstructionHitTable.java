@@ -0,0 +1,134 @@
+package dragondance.eng;
+
+import java.util.Arrays;
+
+/*
+ * Address ordered table of the covered instructions and their hit counts.
+ * Columns are kept in primitive arrays.
+ */
+public class InstructionHitTable {
+	private long[] addrs;
+	private byte[] sizes;
+	private int[] densities;
+	private int count=0;
+	private boolean ordered=true;
+	
+	public InstructionHitTable() {
+		this(1024);
+	}
+	
+	public InstructionHitTable(int capacity) {
+		if (capacity < 1)
+			capacity = 1;
+		
+		this.addrs = new long[capacity];
+		this.sizes = new byte[capacity];
+		this.densities = new int[capacity];
+	}
+	
+	/*
+	 * Wraps address ordered columns. They are checked and marked as unordered if they are not.
+	 */
+	public InstructionHitTable(long[] addrs, byte[] sizes, int[] densities, int count) {
+		this.addrs = addrs;
+		this.sizes = sizes;
+		this.densities = densities;
+		this.count = count;
+		
+		for (int i=1;i<count;i++) {
+			if (addrs[i] <= addrs[i - 1]) {
+				this.ordered = false;
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * Instructions are expected in the strictly ascending address order. An instruction
+	 * out of the order is kept but the table is marked as unordered. It must be
+	 * normalized before it's used as an address ordered table.
+	 */
+	public void add(long addr, int size, int density) {
+		
+		if (this.count > 0 && addr <= this.addrs[this.count - 1])
+			this.ordered = false;
+		
+		if (this.count == this.addrs.length) {
+			int newCapacity = this.count * 2;
+			
+			this.addrs = Arrays.copyOf(this.addrs, newCapacity);
+			this.sizes = Arrays.copyOf(this.sizes, newCapacity);
+			this.densities = Arrays.copyOf(this.densities, newCapacity);
+		}
+		
+		this.addrs[this.count] = addr;
+		this.sizes[this.count] = (byte)size;
+		this.densities[this.count] = density;
+		this.count++;
+	}
+	
+	/*
+	 * Sorts the instructions of an unordered table by their address.
+	 * Hit counts of the same instruction are summed up.
+	 */
+	public void normalize() {
+		Integer[] order;
+		long[] newAddrs;
+		byte[] newSizes;
+		int[] newDensities;
+		int n=0;
+		
+		if (this.ordered)
+			return;
+		
+		order = new Integer[this.count];
+		
+		for (int i=0;i<this.count;i++)
+			order[i] = i;
+		
+		Arrays.sort(order, (i1,i2) -> Long.compare(this.addrs[i1], this.addrs[i2]));
+		
+		newAddrs = new long[Math.max(this.count, 1)];
+		newSizes = new byte[newAddrs.length];
+		newDensities = new int[newAddrs.length];
+		
+		for (int i : order) {
+			
+			if (n > 0 && newAddrs[n - 1] == this.addrs[i]) {
+				newDensities[n - 1] += this.densities[i];
+				continue;
+			}
+			
+			newAddrs[n] = this.addrs[i];
+			newSizes[n] = this.sizes[i];
+			newDensities[n] = this.densities[i];
+			n++;
+		}
+		
+		this.addrs = newAddrs;
+		this.sizes = newSizes;
+		this.densities = newDensities;
+		this.count = n;
+		this.ordered = true;
+	}
+	
+	public final boolean isOrdered() {
+		return this.ordered;
+	}
+	
+	public final int size() {
+		return this.count;
+	}
+	
+	public final long getAddr(int index) {
+		return this.addrs[index];
+	}
+	
+	public final int getSize(int index) {
+		return this.sizes[index] & 0xFF;
+	}
+	
+	public final int getDensity(int index) {
+		return this.densities[index];
+	}
+}
@@ -0,0 +1,222 @@
+package dragondance.eng;
+
+import java.util.Arrays;
+
+import dragondance.Log;
+import ghidra.program.model.address.AddressSetView;
+import ghidra.program.model.address.AddressSpace;
+import ghidra.program.model.listing.Instruction;
+import ghidra.program.model.listing.InstructionIterator;
+import ghidra.program.model.listing.Program;
+
+/*
+ * Sorted instruction start -> instruction length table of a program.
+ * It is filled once by walking the instructions of the executable blocks
+ * so the range builder does not have to ask ghidra for each instruction.
+ */
+public class InstructionSizeCache {
+	private long[] starts;
+	private byte[] lengths;
+	private int count=0;
+	
+	//index of the last hit. range building mostly looks up the next instruction
+	private int hint=0;
+	
+	//hash of the cached instructions. 0 until it's computed
+	private long stamp=0;
+	
+	InstructionSizeCache(int capacity) {
+		this.starts = new long[capacity];
+		this.lengths = new byte[capacity];
+	}
+	
+	public static InstructionSizeCache build(Program program) {
+		InstructionSizeCache cache;
+		InstructionIterator iter;
+		Instruction inst;
+		long beginTime;
+		
+		beginTime = System.nanoTime();
+		
+		cache = new InstructionSizeCache(1 << 16);
+		
+		iter = program.getListing().getInstructions(program.getMemory().getExecuteSet(), true);
+		
+		while (iter.hasNext()) {
+			inst = iter.next();
+			cache.add(inst.getMinAddress().getOffset(), inst.getLength());
+		}
+		
+		Log.info("%d instructions cached in %d ms", cache.count,
+				(System.nanoTime() - beginTime) / 1000000);
+		
+		return cache;
+	}
+	
+	/*
+	 * Returns a copy of the cache whose instructions in the [starts[i],ends[i]] ranges
+	 * are re-read from the listing. The rest of the instructions are copied as is,
+	 * so only the changed code is walked. Ranges must be sorted and must not overlap.
+	 */
+	InstructionSizeCache patch(Program program, long[] starts, long[] ends, int rangeCount) {
+		AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+		AddressSetView executeSet = program.getMemory().getExecuteSet();
+		InstructionSizeCache cache;
+		InstructionIterator iter;
+		Instruction inst;
+		int index=0,relisted=0;
+		long beginTime;
+		
+		beginTime = System.nanoTime();
+		
+		cache = new InstructionSizeCache(Math.max(this.count, 16));
+		
+		for (int i=0;i<rangeCount;i++) {
+			
+			while (index < this.count && this.starts[index] < starts[i])
+				cache.add(this.starts[index], this.lengths[index++] & 0xFF);
+			
+			//drop the cached instructions of the range
+			while (index < this.count && this.starts[index] <= ends[i])
+				index++;
+			
+			iter = program.getListing().getInstructions(
+					executeSet.intersectRange(space.getAddress(starts[i]), space.getAddress(ends[i])), true);
+			
+			while (iter.hasNext()) {
+				inst = iter.next();
+				cache.add(inst.getMinAddress().getOffset(), inst.getLength());
+				relisted++;
+			}
+		}
+		
+		while (index < this.count)
+			cache.add(this.starts[index], this.lengths[index++] & 0xFF);
+		
+		Log.info("%d changed ranges (%d instructions) patched into the instruction cache in %d ms",
+				rangeCount, relisted, (System.nanoTime() - beginTime) / 1000000);
+		
+		return cache;
+	}
+	
+	/*
+	 * Instructions must be added in the ascending address order
+	 */
+	void add(long addr, int length) {
+		
+		if (this.count == this.starts.length) {
+			int newCapacity = this.count * 2;
+			
+			this.starts = Arrays.copyOf(this.starts, newCapacity);
+			this.lengths = Arrays.copyOf(this.lengths, newCapacity);
+		}
+		
+		this.starts[this.count] = addr;
+		this.lengths[this.count] = (byte)length;
+		this.count++;
+	}
+	
+	private int indexOf(long addr) {
+		int lo,hi,mid,h;
+		
+		h = this.hint;
+		
+		if (h < this.count) {
+			if (this.starts[h] == addr)
+				return h;
+			
+			if (h + 1 < this.count && this.starts[h + 1] == addr)
+				return h + 1;
+		}
+		
+		lo = 0;
+		hi = this.count - 1;
+		
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			
+			if (this.starts[mid] < addr)
+				lo = mid + 1;
+			else if (this.starts[mid] > addr)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		
+		return -1;
+	}
+	
+	/*
+	 * Returns the length of the instruction starts at the addr, 0 if it is not in the cache
+	 */
+	public int getSize(long addr) {
+		int index = indexOf(addr);
+		
+		if (index < 0)
+			return 0;
+		
+		this.hint = index;
+		
+		return this.lengths[index] & 0xFF;
+	}
+	
+	//index of the first instruction that starts at or after the addr
+	private int lowerBound(long addr) {
+		int lo=0,hi=this.count,mid;
+		
+		while (lo < hi) {
+			mid = (lo + hi) >>> 1;
+			
+			if (this.starts[mid] < addr)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		
+		return lo;
+	}
+	
+	/*
+	 * Returns the count of the cached instructions start in the [start,end) range
+	 */
+	int countRange(long start, long end) {
+		return lowerBound(end) - lowerBound(start);
+	}
+	
+	/*
+	 * Returns a hash of the cached instructions. Caches of the same stamp
+	 * give the same instruction boundaries to the coverages built against them.
+	 */
+	public long getStamp() {
+		long h = this.stamp;
+		
+		if (h != 0)
+			return h;
+		
+		h = 0xcbf29ce484222325L ^ this.count;
+		
+		for (int i=0;i<this.count;i++) {
+			h = (h ^ this.starts[i]) * 0x100000001b3L;
+			h = (h ^ this.lengths[i]) * 0x100000001b3L;
+		}
+		
+		if (h == 0)
+			h = 1;
+		
+		this.stamp = h;
+		
+		return h;
+	}
+	
+	public final int size() {
+		return this.count;
+	}
+	
+	final long getStart(int index) {
+		return this.starts[index];
+	}
+	
+	final int getLength(int index) {
+		return this.lengths[index] & 0xFF;
+	}
+}
@@ -0,0 +1,252 @@
+package dragondance.eng;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ In memory program view. Instruction lengths come from an exported
+ instruction table or a fixed instruction size is assumed for every address.
+
+ Instruction table file format (little endian)
+
+ header:
+ 	char[8] magic ("DDINSTBL")
+ 	int version
+ 	char[32] executable md5
+ 	long image base
+ 	short length + utf8 program name
+ 	int instruction count
+
+ instructions (repeated instruction count times, in the address order):
+ 	varint gap from the end of the previous instruction (from the image base for the first one)
+ 	byte instruction length
+ */
+
+public class InstructionTableView implements ProgramView {
+	
+	private static final byte[] MAGIC = "DDINSTBL".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final int MD5_LENGTH = 32;
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+	
+	private String programName;
+	private String md5;
+	private long imageBase;
+	private InstructionSizeCache table=null;
+	private int fixedInstructionSize=0;
+	
+	/*
+	 * Creates a view that assumes the same instruction size for every address
+	 */
+	public InstructionTableView(String programName, String md5, long imageBase, int instructionSize) {
+		this.programName = programName;
+		this.md5 = md5;
+		this.imageBase = imageBase;
+		this.fixedInstructionSize = instructionSize;
+	}
+	
+	private InstructionTableView(String programName, String md5, long imageBase, InstructionSizeCache table) {
+		this.programName = programName;
+		this.md5 = md5;
+		this.imageBase = imageBase;
+		this.table = table;
+	}
+	
+	@Override
+	public String getProgramName() {
+		return this.programName;
+	}
+	
+	@Override
+	public String getExecutableMD5() {
+		return this.md5;
+	}
+	
+	@Override
+	public long getImageBase() {
+		return this.imageBase;
+	}
+	
+	@Override
+	public int getInstructionSize(long addr) {
+		if (this.table == null)
+			return this.fixedInstructionSize;
+		
+		return this.table.getSize(addr);
+	}
+	
+	/*
+	 * An exported table has the stamp of the program view it's exported from
+	 */
+	@Override
+	public String getListingStamp() {
+		if (this.table == null)
+			return "fixed-" + this.fixedInstructionSize;
+		
+		return Long.toHexString(this.table.getStamp());
+	}
+	
+	/*
+	 * Instruction tables do not carry the functions
+	 */
+	@Override
+	public FunctionTable getFunctionTable() {
+		return null;
+	}
+	
+	public final int getInstructionCount() {
+		return this.table != null ? this.table.size() : 0;
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		
+		while (buf.hasRemaining())
+			channel.write(buf);
+		
+		buf.clear();
+	}
+	
+	static void write(String file, String programName, String md5, long imageBase, InstructionSizeCache table) throws IOException {
+		ByteBuffer buf;
+		byte[] name,md5Bytes;
+		long prevEnd,start,gap;
+		
+		md5Bytes = md5.getBytes(StandardCharsets.US_ASCII);
+		
+		if (md5Bytes.length != MD5_LENGTH)
+			throw new IOException("invalid executable md5: " + md5);
+		
+		name = programName.getBytes(StandardCharsets.UTF_8);
+		
+		if (name.length > 0xFFFF)
+			throw new IOException("program name is too long");
+		
+		buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			FileChannel channel = raf.getChannel();
+			
+			raf.setLength(0);
+			
+			buf.put(MAGIC);
+			buf.putInt(VERSION);
+			buf.put(md5Bytes);
+			buf.putLong(imageBase);
+			buf.putShort((short)name.length);
+			buf.put(name);
+			buf.putInt(table.size());
+			
+			prevEnd = imageBase;
+			
+			for (int i=0;i<table.size();i++) {
+				
+				//max varint + length
+				if (buf.remaining() < 11)
+					flush(channel, buf);
+				
+				start = table.getStart(i);
+				gap = start - prevEnd;
+				
+				if (gap < 0)
+					throw new IOException(String.format("instruction at %x overlaps the previous one", start));
+				
+				while ((gap & ~0x7FL) != 0) {
+					buf.put((byte)((gap & 0x7F) | 0x80));
+					gap >>>= 7;
+				}
+				
+				buf.put((byte)gap);
+				buf.put((byte)table.getLength(i));
+				
+				prevEnd = start + table.getLength(i);
+			}
+			
+			flush(channel, buf);
+		}
+	}
+	
+	/*
+	 * Loads an instruction table that is exported by GhidraProgramView.exportInstructionTable
+	 */
+	public static InstructionTableView load(String file) throws IOException {
+		InstructionSizeCache table;
+		MappedByteBuffer buf;
+		String programName,md5;
+		long imageBase,addr,gap;
+		int count,length,shift;
+		byte[] data;
+		byte b;
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		
+		try {
+			data = new byte[MAGIC.length];
+			buf.get(data);
+			
+			for (int i=0;i<MAGIC.length;i++) {
+				if (data[i] != MAGIC[i])
+					throw new IOException(file + " is not an instruction table");
+			}
+			
+			if (buf.getInt() != VERSION)
+				throw new IOException("unsupported instruction table version");
+			
+			data = new byte[MD5_LENGTH];
+			buf.get(data);
+			md5 = new String(data, StandardCharsets.US_ASCII);
+			
+			imageBase = buf.getLong();
+			
+			data = new byte[buf.getShort() & 0xFFFF];
+			buf.get(data);
+			programName = new String(data, StandardCharsets.UTF_8);
+			
+			count = buf.getInt();
+			
+			if (count < 0)
+				throw new IOException("instruction table is broken");
+			
+			table = new InstructionSizeCache(Math.max(count, 1));
+			addr = imageBase;
+			
+			for (int i=0;i<count;i++) {
+				gap = 0;
+				shift = 0;
+				
+				do {
+					if (shift > 63)
+						throw new IOException("instruction table is broken");
+					
+					b = buf.get();
+					gap |= (long)(b & 0x7F) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				
+				addr += gap;
+				length = buf.get() & 0xFF;
+				
+				table.add(addr, length);
+				addr += length;
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("instruction table is truncated");
+		}
+		
+		return new InstructionTableView(programName, md5, imageBase, table);
+	}
+}
@@ -0,0 +1,124 @@
+package dragondance.eng;
+
+import java.awt.Color;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ghidra.app.plugin.core.colorizer.ColorizingService;
+import ghidra.program.model.address.AddressSet;
+
+/*
+ * Collects the instructions to be painted and applies them in bulk.
+ * Contiguous instructions of the same color are coalesced into a single
+ * address range and the ranges are grouped by their colors, so
+ * the colorizing service is called once per color instead of once per instruction.
+ */
+public class PaintBatch {
+	private Map<Color, AddressSet> colorSets;
+	private AddressSet clearSet;
+	
+	//pending run of the contiguous same colored instructions
+	private long runStart=0,runEnd=0;
+	private Color runColor=null;
+	
+	private long clearStart=0,clearEnd=0;
+	
+	public PaintBatch() {
+		this.colorSets = new LinkedHashMap<Color, AddressSet>();
+		this.clearSet = new AddressSet();
+	}
+	
+	private void flushRun() {
+		AddressSet set;
+		
+		if (this.runColor == null)
+			return;
+		
+		set = this.colorSets.get(this.runColor);
+		
+		if (set == null) {
+			set = new AddressSet();
+			this.colorSets.put(this.runColor, set);
+		}
+		
+		set.add(DragonHelper.getAddress(this.runStart), DragonHelper.getAddress(this.runEnd - 1));
+		
+		this.runColor = null;
+	}
+	
+	private void flushClear() {
+		
+		if (this.clearEnd == this.clearStart)
+			return;
+		
+		this.clearSet.add(DragonHelper.getAddress(this.clearStart), DragonHelper.getAddress(this.clearEnd - 1));
+		
+		this.clearStart = this.clearEnd = 0;
+	}
+	
+	/*
+	 * Instructions should be added in the ascending address order
+	 * to get the most of the coalescing.
+	 */
+	public void add(long addr, long size, Color color) {
+		
+		if (this.runColor != null && addr == this.runEnd && this.runColor.equals(color)) {
+			this.runEnd += size;
+			return;
+		}
+		
+		flushRun();
+		
+		this.runStart = addr;
+		this.runEnd = addr + size;
+		this.runColor = color;
+	}
+	
+	public void addClear(long addr, long size) {
+		
+		if (size <= 0)
+			return;
+		
+		if (this.clearEnd != this.clearStart && addr == this.clearEnd) {
+			this.clearEnd += size;
+			return;
+		}
+		
+		flushClear();
+		
+		this.clearStart = addr;
+		this.clearEnd = addr + size;
+	}
+	
+	public final boolean isEmpty() {
+		return this.runColor == null && this.clearEnd == this.clearStart &&
+				this.colorSets.isEmpty() && this.clearSet.isEmpty();
+	}
+	
+	/*
+	 * Must be called in a transaction. Clear ranges are applied before the colors.
+	 */
+	public boolean apply() {
+		ColorizingService colorService;
+		
+		flushRun();
+		flushClear();
+		
+		colorService = DragonHelper.getColorizingService();
+		
+		if (colorService == null)
+			return false;
+		
+		if (!this.clearSet.isEmpty())
+			colorService.clearBackgroundColor(this.clearSet);
+		
+		for (Map.Entry<Color, AddressSet> entry : this.colorSets.entrySet()) {
+			colorService.setBackgroundColor(entry.getValue(), entry.getKey());
+		}
+		
+		this.colorSets.clear();
+		this.clearSet = new AddressSet();
+		
+		return true;
+	}
+}
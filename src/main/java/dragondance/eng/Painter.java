@@ -4,7 +4,7 @@ import java.awt.Color;
 import java.io.FileNotFoundException;
 
 import dragondance.Globals;
-import dragondance.eng.session.SessionManager;
+import dragondance.datasource.CoverageData;
 
 public class Painter {
 	
@@ -19,11 +19,28 @@ public class Painter {
 	public static final int PAINT_MODE_MAX=PAINT_MODE_INTERSECTION;
 	
 	
+	//number of the quantized hue steps between MIN_HUE and MAX_HUE
+	private static final int PALETTE_SIZE = 256;
+	
+	//densities above this are mapped through the hue palette directly
+	private static final int MAX_DENSITY_LUT_SIZE = 1 << 16;
+	
+	private static final Color[] huePalette = buildHuePalette();
+	private static final Color intersectionColor = hsbToRgb(360.0f,0.72f,0.60f);
+	
 	private int colorPolicy;
 	private boolean testSampleGen=false;
 	private int testMaxDensity=0;
 	private int mode=PAINT_MODE_DEFAULT;
 	
+	//coverage whose max density scales the heat colors
+	private CoverageData referenceCoverage=null;
+	
+	//density -> color table of the current color policy and max density
+	private Color[] densityColors=null;
+	private int lutPolicy=-1;
+	private int lutMaxDensity=-1;
+	
 	public Painter() {
 		this(false);
 	}
@@ -35,7 +52,7 @@ public class Painter {
 	
 	//Hsb to Rgb conversion algorithm
 	//#https://en.wikipedia.org/wiki/HSL_and_HSV#From_HSV
-	private Color hsbToRgb(float hue, float sat, float brig) {
+	private static Color hsbToRgb(float hue, float sat, float brig) {
 		float c = sat * brig;
 		float m = brig-c;
 		
@@ -43,7 +60,7 @@ public class Painter {
 		
 		hue /= 60.0;
 		
-		int i = ((Double)Math.floor(hue)).intValue();
+		int i = (int)Math.floor(hue);
 		
 		float x = c * (1-Math.abs(hue % 2 - 1));
 		
@@ -87,21 +104,48 @@ public class Painter {
 		return new Color((int)r,(int)g,(int)b);
 	}
 	
+	private static Color[] buildHuePalette() {
+		Color[] palette = new Color[PALETTE_SIZE];
+		float hdiff = Globals.MAX_HUE - Globals.MIN_HUE;
+		
+		for (int i=0;i<PALETTE_SIZE;i++) {
+			palette[i] = hsbToRgb(Globals.MIN_HUE + (i * hdiff) / (PALETTE_SIZE - 1),
+					SATURATION,BRIGHTNESS);
+		}
+		
+		return palette;
+	}
+	
+	private static Color getHueColor(float heatHue) {
+		int index;
+		
+		if (Float.isNaN(heatHue))
+			return Color.WHITE;
+		
+		if (heatHue < Globals.MIN_HUE)
+			heatHue = Globals.MIN_HUE;
+		else if (heatHue > Globals.MAX_HUE)
+			heatHue = Globals.MAX_HUE;
+		
+		index = Math.round(((heatHue - Globals.MIN_HUE) * (PALETTE_SIZE - 1)) / 
+				(Globals.MAX_HUE - Globals.MIN_HUE));
+		
+		return huePalette[index];
+	}
+	
 	private int getMaxDensity() {
 		if (this.testSampleGen)
 			return this.testMaxDensity;
 		
-		return SessionManager.
-				getActiveSession().
-				getActiveCoverage().getMaxDensity();
+		if (this.referenceCoverage == null)
+			throw new IllegalStateException("painter has no reference coverage");
+		
+		return this.referenceCoverage.getMaxDensity();
 	}
 	
-	private Color getHeatColorThreshold(int density) {
-		int maxDensity;
+	private float getHeatHueThreshold(int density, int maxDensity) {
 		float heatHue,factor;
 		
-		maxDensity = getMaxDensity();
-		
 		factor = (Globals.MAX_HUE / maxDensity) / 2;
 		
 		if (factor < 1.0f)
@@ -112,44 +156,84 @@ public class Painter {
 		if (heatHue > Globals.MAX_HUE)
 			heatHue = Globals.MAX_HUE;
 		
-		return hsbToRgb(heatHue,SATURATION,BRIGHTNESS);
+		return heatHue;
 	}
 	
-	private Color getHeatColorMaxDensity(int density) {
-		float heatHue, dp,hp,hdiff;
+	private float getHeatHueMaxDensity(int density, int maxDensity) {
+		float dp,hp,hdiff;
 		
 		hdiff = Globals.MAX_HUE - Globals.MIN_HUE;
 		
-		dp = (density / (float)getMaxDensity()) * 100.0f;
+		dp = (density / (float)maxDensity) * 100.0f;
 		hp = (dp * hdiff) / 100.0f;
-		heatHue = Globals.MIN_HUE + hp;
 		
-		return hsbToRgb(heatHue,SATURATION,BRIGHTNESS);
+		return Globals.MIN_HUE + hp;
 	}
 	
-	private Color getHeatColor(int density) {
+	private float getHeatHue(int density, int maxDensity) {
+		
+		if (maxDensity < 1)
+			maxDensity = 1;
 		
 		switch (this.colorPolicy) {
 		case Painter.CP_USE_MAX_DENSITY:
-			return getHeatColorMaxDensity(density);
+			return getHeatHueMaxDensity(density, maxDensity);
 		case Painter.CP_USE_THRESHOLD_VALUE:
-			return getHeatColorThreshold(density);
+			return getHeatHueThreshold(density, maxDensity);
 		}
 		
-		return Color.WHITE;
+		return Float.NaN;
 	}
 	
-	public boolean paint(InstructionInfo inst) {
-		Color color;
+	private Color[] buildDensityColors(int maxDensity) {
+		Color[] colors;
 		
-		if (this.mode == PAINT_MODE_DEFAULT) {
-			color = getHeatColor(inst.getDensity());
+		colors = new Color[Math.min(Math.max(maxDensity, 0), MAX_DENSITY_LUT_SIZE) + 1];
+		
+		for (int i=0;i<colors.length;i++) {
+			colors[i] = getHueColor(getHeatHue(i, maxDensity));
+		}
+		
+		return colors;
+	}
+	
+	private Color getHeatColor(int density) {
+		int maxDensity = getMaxDensity();
+		Color[] colors = this.densityColors;
+		
+		if (colors == null || this.lutMaxDensity != maxDensity || this.lutPolicy != this.colorPolicy) {
+			colors = buildDensityColors(maxDensity);
+			
+			this.lutMaxDensity = maxDensity;
+			this.lutPolicy = this.colorPolicy;
+			this.densityColors = colors;
 		}
-		else {
-			color = hsbToRgb(360.0f,0.72f,0.60f);
+		
+		if (density >= 0 && density < colors.length)
+			return colors[density];
+		
+		return getHueColor(getHeatHue(density, maxDensity));
+	}
+	
+	public Color getColor(InstructionInfo inst) {
+		return getColor(inst.getDensity());
+	}
+	
+	public Color getColor(int density) {
+		
+		if (this.mode == PAINT_MODE_DEFAULT) {
+			return getHeatColor(density);
 		}
 		
-		return DragonHelper.setInstructionBackgroundColor(inst.getAddr(), color);
+		return intersectionColor;
+	}
+	
+	/*
+	 * Colors are computed against the max density of this coverage.
+	 * It must be set before the painter is used.
+	 */
+	public void setReferenceCoverage(CoverageData coverage) {
+		this.referenceCoverage = coverage;
 	}
 	
 	public int setMode(int newMode) {
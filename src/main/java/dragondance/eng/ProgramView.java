@@ -0,0 +1,34 @@
+package dragondance.eng;
+
+import dragondance.exceptions.InvalidInstructionAddress;
+
+/*
+ * The program facts that the coverage engine needs to build and combine coverages.
+ * Sessions and coverages take it by injection, so they do not depend on the
+ * program that is currently open in the tool. Coverages of different programs
+ * can be built in the same process.
+ */
+public interface ProgramView {
+	
+	public String getProgramName();
+	
+	public String getExecutableMD5();
+	
+	public long getImageBase();
+	
+	/*
+	 * Returns the length of the instruction starts at the addr, 0 if there is no instruction
+	 */
+	public int getInstructionSize(long addr) throws InvalidInstructionAddress;
+	
+	/*
+	 * Returns a stamp of the instructions the coverages are built against.
+	 * It changes when the instructions are changed (re-disassembly, re-analysis etc.)
+	 */
+	public String getListingStamp();
+	
+	/*
+	 * Returns the function bodies of the program, null if the functions are not known
+	 */
+	public FunctionTable getFunctionTable();
+}
@@ -0,0 +1,315 @@
+package dragondance.eng.session;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import dragondance.Log;
+import dragondance.datasource.CoverageData;
+import dragondance.datasource.CoverageDataSource;
+
+/*
+ * Folds a stream of coverage files into a single coverage with a set operation.
+ * Files are loaded in parallel but they are not added to the session. Each of them
+ * is folded into the aggregated coverage and closed as soon as it's loaded, so only
+ * a few of them live in the memory at the same time.
+ */
+public class CoverageAggregator {
+	
+	public static final int OP_SUM = 0;
+	public static final int OP_INTERSECT = 1;
+	public static final int OP_DIFFERENCE = 2;
+	public static final int OP_DISTINCT = 3;
+	
+	private Session session;
+	private int operation;
+	private int threadCount;
+	
+	//running sum of the inputs. odd count distinct takes its densities from it
+	private CoverageData totals=null;
+	
+	private int loadedCount=0;
+	private int failedCount=0;
+	private long entryCount=0;
+	
+	public CoverageAggregator(Session session, int operation, int threadCount) {
+		this.session = session;
+		this.operation = operation;
+		this.threadCount = Math.max(1, threadCount);
+	}
+	
+	/*
+	 * Returns the operation constant of the name or -1 if it's not a set operation
+	 */
+	public static int getOperation(String name) {
+		switch (name.toLowerCase()) {
+		case "sum":
+		case "or":
+		case "union":
+			return OP_SUM;
+		case "intersect":
+		case "and":
+			return OP_INTERSECT;
+		case "diff":
+		case "difference":
+			return OP_DIFFERENCE;
+		case "distinct":
+		case "xor":
+			return OP_DISTINCT;
+		}
+		
+		return -1;
+	}
+	
+	/*
+	 * Returns the sorted paths of the supported coverage files in the dir matching the glob
+	 */
+	public static List<String> listCoverageFiles(Path dir, String glob) throws IOException {
+		List<String> files = new ArrayList<String>();
+		
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+			for (Path file : stream) {
+				if (!Files.isRegularFile(file))
+					continue;
+				
+				//only the supported coverage files
+				if (CoverageDataSource.detectCoverageDataFileType(file.toString()) == -1)
+					continue;
+				
+				files.add(file.toString());
+			}
+		}
+		
+		files.sort(null);
+		
+		return files;
+	}
+	
+	public final int getLoadedCount() {
+		return this.loadedCount;
+	}
+	
+	public final int getFailedCount() {
+		return this.failedCount;
+	}
+	
+	/*
+	 * Total block entries read from the loaded files
+	 */
+	public final long getEntryCount() {
+		return this.entryCount;
+	}
+	
+	private CoverageData loadDetached(String file) throws Exception {
+		CoverageData coverage = this.session.createDetachedCoverageData(file);
+		
+		if (coverage == null)
+			return null;
+		
+		try {
+			if (coverage.getSource().process() && coverage.build())
+				return coverage;
+		}
+		catch (Exception e) {
+			coverage.closeNothrow();
+			throw e;
+		}
+		
+		coverage.closeNothrow();
+		
+		return null;
+	}
+	
+	private CoverageData combine(CoverageData[] inputs) {
+		
+		if (inputs.length == 1) {
+			//a single input is copied, so it can be closed like the others
+			return CoverageData.accumulate(inputs);
+		}
+		
+		switch (this.operation) {
+		case OP_INTERSECT:
+			return CoverageData.intersect(inputs);
+		case OP_DIFFERENCE:
+			return CoverageData.difference(inputs);
+		case OP_DISTINCT:
+			return CoverageData.distinct(inputs);
+		}
+		
+		return CoverageData.accumulate(inputs);
+	}
+	
+	private static CoverageData[] prepend(CoverageData first, List<CoverageData> batch) {
+		CoverageData[] inputs;
+		int i=0;
+		
+		inputs = new CoverageData[batch.size() + (first != null ? 1 : 0)];
+		
+		if (first != null)
+			inputs[i++] = first;
+		
+		for (CoverageData coverage : batch)
+			inputs[i++] = coverage;
+		
+		return inputs;
+	}
+	
+	/*
+	 * All of the operations are folded batch by batch. Intersection, sum and the
+	 * odd count distinct are associative. The difference keeps the aggregated (first)
+	 * coverage as the left operand so it's the first file minus all of the others.
+	 */
+	private CoverageData fold(CoverageData aggregated, List<CoverageData> batch) {
+		CoverageData[] inputs;
+		CoverageData result,previous;
+		
+		if (this.operation == OP_DISTINCT) {
+			//an instruction dropped by a batch may come back with a later one. keep all of its hits
+			previous = this.totals;
+			this.totals = CoverageData.accumulate(prepend(previous, batch));
+			
+			if (previous != null)
+				previous.closeNothrow();
+		}
+		
+		inputs = prepend(aggregated, batch);
+		result = combine(inputs);
+		
+		//the result does not refer to the inputs
+		for (CoverageData coverage : inputs)
+			coverage.closeNothrow();
+		
+		batch.clear();
+		
+		return result;
+	}
+	
+	private CoverageData finish(CoverageData aggregated) {
+		CoverageData result;
+		
+		if (this.totals == null || aggregated == null)
+			return aggregated;
+		
+		result = CoverageData.restrict(this.totals, aggregated);
+		
+		aggregated.closeNothrow();
+		this.totals.closeNothrow();
+		this.totals = null;
+		
+		return result;
+	}
+	
+	private void loaded(CoverageData coverage) {
+		this.loadedCount++;
+		this.entryCount += coverage.getSource().getReadedEntryCount();
+	}
+	
+	/*
+	 * Loads and folds the files. Returns null if none of them could be loaded.
+	 * The difference needs the first file, it is loaded before the others.
+	 */
+	public CoverageData aggregate(List<String> files) throws InterruptedException {
+		ExecutorService executor;
+		CompletionService<CoverageData> completion;
+		List<CoverageData> batch;
+		CoverageData aggregated=null,coverage;
+		int threads,first=0,submitted,completed;
+		
+		this.loadedCount = 0;
+		this.failedCount = 0;
+		this.entryCount = 0;
+		
+		if (this.operation == OP_DIFFERENCE && !files.isEmpty()) {
+			first = 1;
+			
+			try {
+				aggregated = loadDetached(files.get(0));
+			} catch (Exception e) {
+				Log.println("%s: %s", files.get(0), e.getMessage());
+			}
+			
+			if (aggregated == null) {
+				this.failedCount++;
+				return null;
+			}
+			
+			loaded(aggregated);
+		}
+		
+		threads = Math.max(1, Math.min(this.threadCount, files.size() - first));
+		
+		executor = Executors.newFixedThreadPool(threads);
+		completion = new ExecutorCompletionService<CoverageData>(executor);
+		batch = new ArrayList<CoverageData>(threads);
+		
+		submitted = completed = first;
+		
+		try {
+			while (completed < files.size()) {
+				
+				//keep at most threads files loading and waiting to be folded
+				while (submitted < files.size() && submitted - completed < threads) {
+					final String file = files.get(submitted++);
+					
+					completion.submit(() -> {
+						return loadDetached(file);
+					});
+				}
+				
+				try {
+					coverage = completion.take().get();
+				} catch (ExecutionException e) {
+					Log.println("%s", e.getCause().getMessage());
+					coverage = null;
+				}
+				
+				completed++;
+				
+				if (coverage == null) {
+					this.failedCount++;
+					continue;
+				}
+				
+				loaded(coverage);
+				batch.add(coverage);
+				
+				if (batch.size() == threads)
+					aggregated = fold(aggregated, batch);
+			}
+			
+			if (!batch.isEmpty())
+				aggregated = fold(aggregated, batch);
+			
+			aggregated = finish(aggregated);
+		}
+		catch (InterruptedException e) {
+			if (aggregated != null)
+				aggregated.closeNothrow();
+			
+			if (this.totals != null)
+				this.totals.closeNothrow();
+			
+			this.totals = null;
+			
+			throw e;
+		}
+		finally {
+			executor.shutdownNow();
+			
+			for (CoverageData pending : batch)
+				pending.closeNothrow();
+		}
+		
+		Log.info("%d files aggregated, %d failed", this.loadedCount, this.failedCount);
+		
+		return aggregated;
+	}
+}
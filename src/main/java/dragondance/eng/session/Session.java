@@ -1,16 +1,26 @@
 package dragondance.eng.session;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 
+import dragondance.Globals;
 import dragondance.Log;
+import dragondance.datasource.CommonDatabaseDataSource;
+import dragondance.datasource.CommonDatabaseDataSource.DatabaseContent;
 import dragondance.datasource.CoverageData;
 import dragondance.datasource.CoverageDataSource;
+import dragondance.datasource.DragonDanceDataSource;
 import dragondance.datasource.DynamorioDataSource;
 import dragondance.datasource.PintoolDataSource;
+import dragondance.datasource.TraceCache;
+import dragondance.eng.DragonHelper;
 import dragondance.eng.Painter;
+import dragondance.eng.ProgramView;
+import dragondance.exceptions.InvalidInstructionAddress;
+import dragondance.exceptions.OperationAbortedException;
 
 
 public class Session {
@@ -21,15 +31,29 @@ public class Session {
 	
 	private List<CoverageData> coverageSources;
 	
-	private CoverageData activeCoverage=null;
+	//coverages can be imported and switched from the worker threads
+	private volatile CoverageData activeCoverage=null;
 	
 	private Painter painter=null;
 	
+	private ProgramView program;
+	
+	//address range currently shown in the listing
+	private volatile long[] viewRange=null;
+	
 	public static Session createNew(String name, String imageName) {
+		return createNew(name, imageName, DragonHelper.getProgramView());
+	}
+	
+	/*
+	 * Creates a session whose coverages are built against the given program view
+	 */
+	public static Session createNew(String name, String imageName, ProgramView program) {
 		Session sess = new Session();
 		
 		sess.imageName = imageName;
 		sess.sessionName = name;
+		sess.program = program;
 		sess.coverageSources = new ArrayList<CoverageData>();
 		
 		SessionManager.registerSession(sess);
@@ -44,6 +68,8 @@ public class Session {
 			return DynamorioDataSource.class;
 		case CoverageDataSource.SOURCE_TYPE_PINTOOL:
 			return PintoolDataSource.class;
+		case CoverageDataSource.SOURCE_TYPE_DDCOV:
+			return DragonDanceDataSource.class;
 		}
 		
 		return null;
@@ -55,25 +81,119 @@ public class Session {
 			return "Dynamorio";
 		case CoverageDataSource.SOURCE_TYPE_PINTOOL:
 			return "Pintool";
+		case CoverageDataSource.SOURCE_TYPE_DDCOV:
+			return "DragonDance";
 		}
 		
 		return "Unknown";
 	}
 	
+	private static DatabaseContent readDatabase(String sessionDatabase, ProgramView program) throws IOException {
+		DatabaseContent content = CommonDatabaseDataSource.readDatabase(sessionDatabase, program.getImageBase());
+		String md5 = program.getExecutableMD5();
+		
+		if (!content.getExecutableMD5().equalsIgnoreCase(md5)) {
+			for (CommonDatabaseDataSource source : content.getSources()) {
+				try {
+					source.close();
+				} catch (Exception e) { }
+			}
+			
+			throw new IOException(String.format(
+					"session database belongs to another executable (%s). current executable is %s",
+					content.getExecutableMD5(), md5));
+		}
+		
+		return content;
+	}
+	
+	/*
+	 * Creates a new session from a session database
+	 */
 	public static Session open(String sessionDatabase) throws Exception {
-		throw new Exception("Session.open not implemented yet.");
+		return open(sessionDatabase, DragonHelper.getProgramView());
 	}
 	
+	public static Session open(String sessionDatabase, ProgramView program) throws Exception {
+		DatabaseContent content = readDatabase(sessionDatabase, program);
+		Session sess = createNew(content.getSessionName(), program.getProgramName(), program);
+		
+		sess.attachStoredCoverages(content.getSources());
+		
+		return sess;
+	}
 	
-	public CoverageData addCoverageData(String fileName) throws FileNotFoundException {
+	/*
+	 * Adds the coverages stored in the session database into this session.
+	 * Stored ranges are used as is, so nothing is decoded or merged again.
+	 */
+	public List<CoverageData> loadDatabase(String sessionDatabase) throws IOException {
+		DatabaseContent content = readDatabase(sessionDatabase, this.program);
+		
+		return attachStoredCoverages(content.getSources());
+	}
+	
+	private synchronized List<CoverageData> attachStoredCoverages(List<CommonDatabaseDataSource> sources) {
+		List<CoverageData> loaded = new ArrayList<CoverageData>();
+		CoverageData coverage;
+		
+		for (CommonDatabaseDataSource source : sources) {
+			coverage = new CoverageData(source, this);
+			
+			try {
+				if (!source.process() || !coverage.build()) {
+					coverage.closeNothrow();
+					continue;
+				}
+			} catch (InvalidInstructionAddress | OperationAbortedException e) {
+				Log.println("%s could not be restored (%s)", source.getName(), e.getMessage());
+				coverage.closeNothrow();
+				continue;
+			}
+			
+			source.setId(coverageIndex++);
+			
+			this.coverageSources.add(coverage);
+			loaded.add(coverage);
+		}
+		
+		return loaded;
+	}
+	
+	/*
+	 * Stores the built coverages of the session. Logical coverages are not stored.
+	 */
+	public synchronized int save(String sessionDatabase) throws IOException {
+		return CommonDatabaseDataSource.writeDatabase(sessionDatabase, 
+				this.program.getExecutableMD5(), this.sessionName, this.coverageSources);
+	}
+	
+	
+	/*
+	 * Creates a coverage from the file without adding it to the session.
+	 * It does not lock the session, the trace may be hashed for the trace cache lookup.
+	 */
+	public CoverageData createDetachedCoverageData(String fileName) throws FileNotFoundException {
+		String cacheKey=null;
 		int sourceType = CoverageDataSource.detectCoverageDataFileType(fileName);
 		
 		if (sourceType == -1)
 			return null;
 		
+		if (Globals.EnableTraceCache) {
+			cacheKey = TraceCache.makeKey(fileName, this.program.getExecutableMD5(), this.imageName, 
+					this.program.getListingStamp());
+			
+			if (cacheKey != null) {
+				CommonDatabaseDataSource cached = TraceCache.lookup(cacheKey, fileName, this.program.getImageBase());
+				
+				if (cached != null)
+					return new CoverageData(cached, this);
+			}
+		}
+		
 		Class<?> clazz = getDatasourceAdapter(sourceType);
 		CoverageDataSource dataSource;
-		CoverageData coverage;
 		
 		if (clazz == null)
 			return null;
@@ -88,20 +208,41 @@ public class Session {
 			return null;
 		}
 		
-		dataSource.setId(coverageIndex++);
+		dataSource.setCacheKey(cacheKey);
 		
-		coverage = new CoverageData(dataSource);
+		return new CoverageData(dataSource, this);
+	}
+	
+	/*
+	 * Creates the coverage and adds it to the session. The trace is hashed and
+	 * looked up in the trace cache out of the session lock, so the concurrent imports
+	 * do not wait for each other.
+	 */
+	public CoverageData addCoverageData(String fileName) throws FileNotFoundException {
+		CoverageData coverage = createDetachedCoverageData(fileName);
+		
+		if (coverage == null)
+			return null;
+		
+		attachCoverageData(coverage);
+		
+		return coverage;
+	}
+	
+	/*
+	 * Adds a coverage that is created by createDetachedCoverageData into the session
+	 */
+	public synchronized void attachCoverageData(CoverageData coverage) {
+		coverage.getSource().setId(coverageIndex++);
 		
 		this.coverageSources.add(coverage);
 		
 		if (this.activeCoverage == null) {
 			this.activeCoverage = coverage;
 		}
-		
-		return coverage;
 	}
 	
-	public CoverageData getCoverage(int id) {
+	public synchronized CoverageData getCoverage(int id) {
 		CoverageData covData;
 		
 		for (int i=0;i<this.coverageSources.size();i++) {
@@ -115,7 +256,7 @@ public class Session {
 		return null;
 	}
 	
-	public boolean removeCoverageData(int id) {
+	public synchronized boolean removeCoverageData(int id) {
 		int index=-1;
 		CoverageData covData;
 		
@@ -143,7 +284,7 @@ public class Session {
 		return true;
 	}
 	
-	public CoverageData getActiveCoverage() {
+	public synchronized CoverageData getActiveCoverage() {
 		return this.activeCoverage;
 	}
 	
@@ -157,35 +298,63 @@ public class Session {
 		return setActiveCoverage(cov);
 	}
 	
-	public boolean setActiveCoverage(CoverageData coverage) {
+	public synchronized boolean setActiveCoverage(CoverageData coverage) {
 		int oldMode=-1;
-		
-		if (this.activeCoverage != null) {
-			this.activeCoverage.clearPaint();
-			
-			if (this.activeCoverage.isLogicalCoverageData())
-				this.activeCoverage.closeNothrow();
-		}
+		CoverageData previous = this.activeCoverage;
 		
 		this.activeCoverage = coverage;
 		
 		if (coverage != null) {
-			if (this.activeCoverage.isLogicalCoverageData())
+			this.painter.setReferenceCoverage(coverage);
+			
+			//a summed coverage keeps the hit counts, so it is painted by density
+			if (this.activeCoverage.isLogicalCoverageData() && !this.activeCoverage.isDensityPreserved())
 				oldMode = this.painter.setMode(Painter.PAINT_MODE_INTERSECTION);
 			
-			this.activeCoverage.paint(this.painter);
+			//repaint only the difference between the previous and the new coverage
+			this.activeCoverage.paint(this.painter, previous);
 			
 			if (oldMode > -1)
 				this.painter.setMode(oldMode);
 		}
 		
+		if (previous != null && previous != coverage) {
+			//no-op if the new coverage took over its paint
+			previous.clearPaint();
+			
+			if (previous.isLogicalCoverageData())
+				previous.closeNothrow();
+		}
+		
 		return true;
 	}
 	
-	public boolean isActiveCoverage(CoverageData coverage) {
+	public synchronized boolean isActiveCoverage(CoverageData coverage) {
 		return this.activeCoverage == coverage;
 	}
 	
+	/*
+	 * Called when the location in the listing changes. The function that the location
+	 * belongs to or the surrounding of the location is painted at first if the active coverage
+	 * is being painted lazily.
+	 */
+	public void setViewLocation(long addr) {
+		long[] range = DragonHelper.getFunctionRange(addr);
+		CoverageData coverage = this.activeCoverage;
+		
+		if (range == null)
+			range = new long[] {addr, addr};
+		
+		this.viewRange = range;
+		
+		if (coverage != null)
+			coverage.paintRegion(range[0], range[1]);
+	}
+	
+	public final long[] getViewRange() {
+		return this.viewRange;
+	}
+	
 	public void setPainter(Painter painter) {
 		this.painter = painter;
 	}
@@ -194,7 +363,11 @@ public class Session {
 		return this.sessionName;
 	}
 	
-	public CoverageData tryGetPreviouslyLoadedCoverage(String fileName) {
+	public final ProgramView getProgramView() {
+		return this.program;
+	}
+	
+	public synchronized CoverageData tryGetPreviouslyLoadedCoverage(String fileName) {
 		for (CoverageData cov : this.coverageSources) {
 			if (!cov.isLogicalCoverageData() && cov.getSourceFilePath().equals(fileName))
 				return cov;
@@ -203,7 +376,7 @@ public class Session {
 		return null;
 	}
 	
-	public CoverageData getCoverageByName(String name) {
+	public synchronized CoverageData getCoverageByName(String name) {
 		for (CoverageData cov : this.coverageSources) {
 			if (cov.getName().equals(name)) {
 				return cov;
@@ -213,7 +386,7 @@ public class Session {
 		return null;
 	}
 	
-	public void close() throws Exception {
+	public synchronized void close() throws Exception {
 		
 		SessionManager.deregisterSession(this);
 		
@@ -11,7 +11,7 @@ public class SessionManager {
 		SessionManager.sessions = new ArrayList<Session>();
 	}
 	
-	public static void registerSession(Session session) {
+	public static synchronized void registerSession(Session session) {
 		sessions.add(session);
 		
 		if (sessions.size()==1) {
@@ -19,15 +19,18 @@ public class SessionManager {
 		}
 	}
 	
-	public static void deregisterSession(Session session) {
+	public static synchronized void deregisterSession(Session session) {
 		
 		if (session == null)
 			return;
 		
 		sessions.remove(session);
+		
+		if (activeSession == session)
+			activeSession = sessions.isEmpty() ? null : sessions.get(0);
 	}
 	
-	public static Session getActiveSession() {
+	public static synchronized Session getActiveSession() {
 		return activeSession;
 	}
 	
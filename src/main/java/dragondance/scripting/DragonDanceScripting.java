@@ -13,6 +13,7 @@ import dragondance.exceptions.ScriptParserException;
 import dragondance.scripting.functions.BuiltinAlias;
 import dragondance.scripting.functions.BuiltinFunctionBase;
 import dragondance.scripting.functions.impl.BuiltinFunctionClear;
+import dragondance.scripting.functions.impl.BuiltinFunctionConvert;
 import dragondance.scripting.functions.impl.BuiltinFunctionCwd;
 import dragondance.scripting.functions.impl.BuiltinFunctionDiff;
 import dragondance.scripting.functions.impl.BuiltinFunctionDiscard;
@@ -20,6 +21,7 @@ import dragondance.scripting.functions.impl.BuiltinFunctionDistinct;
 import dragondance.scripting.functions.impl.BuiltinFunctionGoto;
 import dragondance.scripting.functions.impl.BuiltinFunctionImport;
 import dragondance.scripting.functions.impl.BuiltinFunctionIntersect;
+import dragondance.scripting.functions.impl.BuiltinFunctionLoadDir;
 import dragondance.scripting.functions.impl.BuiltinFunctionShow;
 import dragondance.scripting.functions.impl.BuiltinFunctionSum;
 import dragondance.util.Util;
@@ -42,6 +44,8 @@ public class DragonDanceScripting {
 		registerBuiltin("sum",BuiltinFunctionSum.class);
 		registerBuiltin("distinct",BuiltinFunctionDistinct.class);
 		registerBuiltin("import",BuiltinFunctionImport.class);
+		registerBuiltin("loaddir",BuiltinFunctionLoadDir.class);
+		registerBuiltin("convert",BuiltinFunctionConvert.class);
 		registerBuiltin("cwd",BuiltinFunctionCwd.class);
 		registerBuiltin("show",BuiltinFunctionShow.class);
 		registerBuiltin("discard",BuiltinFunctionDiscard.class);
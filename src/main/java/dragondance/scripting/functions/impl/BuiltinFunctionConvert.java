@@ -0,0 +1,59 @@
+package dragondance.scripting.functions.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import dragondance.Log;
+import dragondance.datasource.CoverageData;
+import dragondance.datasource.DragonDanceDataSource;
+import dragondance.exceptions.DragonDanceScriptRuntimeException;
+import dragondance.scripting.DragonDanceScripting;
+import dragondance.scripting.functions.BuiltinFunctionBase;
+
+/*
+ * Converts a drcov or ddph coverage file into the compressed ddcov format.
+ * convert("trace.log", "trace.ddcov")
+ */
+public class BuiltinFunctionConvert extends BuiltinFunctionBase {
+
+	public BuiltinFunctionConvert() {
+		super("convert");
+	}
+	
+	@Override
+	public int requiredArgCount(boolean minimum) {
+		return 2;
+	}
+	
+	@Override
+	public boolean hasReturnType() {
+		return false;
+	}
+	
+	private String prepareFilePath(String file) {
+		
+		if (new File(file).isAbsolute() || DragonDanceScripting.workingDirectory == null)
+			return file;
+		
+		return Paths.get(DragonDanceScripting.workingDirectory, file).toString();
+	}
+	
+	@Override
+	public CoverageData execute() {
+		String[] finalArgs = getStringArguments();
+		String inputFile = prepareFilePath(finalArgs[0]);
+		String outputFile = prepareFilePath(finalArgs[1]);
+		
+		try {
+			DragonDanceDataSource.convert(inputFile, outputFile, true);
+		} catch (IOException e) {
+			throw new DragonDanceScriptRuntimeException(String.format("\"%s\" could not be converted (%s)", finalArgs[0], e.getMessage()));
+		}
+		
+		Log.info("%s converted into %s", inputFile, outputFile);
+		
+		return super.execute();
+	}
+	
+}
@@ -0,0 +1,89 @@
+package dragondance.scripting.functions.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import dragondance.Globals;
+import dragondance.datasource.CoverageData;
+import dragondance.eng.session.CoverageAggregator;
+import dragondance.eng.session.Session;
+import dragondance.eng.session.SessionManager;
+import dragondance.exceptions.DragonDanceScriptRuntimeException;
+import dragondance.scripting.DragonDanceScripting;
+import dragondance.scripting.functions.BuiltinAlias;
+import dragondance.scripting.functions.BuiltinFunctionBase;
+
+/*
+ * Loads all of the coverage files matching a glob pattern (e.g. "traces/*.log")
+ * and sums them into a single coverage that keeps the hit counts.
+ * Files are streamed through a CoverageAggregator, they are not added to the session.
+ */
+@BuiltinAlias(aliases = { "importdir" })
+public class BuiltinFunctionLoadDir extends BuiltinFunctionBase {
+	
+	public BuiltinFunctionLoadDir() {
+		super("loaddir");
+	}
+	
+	@Override
+	public int requiredArgCount(boolean minimum) {
+		return 1;
+	}
+	
+	private List<String> findFiles(String pattern) {
+		Path patternPath,dir;
+		String glob;
+		
+		patternPath = Paths.get(pattern);
+		
+		if (!patternPath.isAbsolute() && DragonDanceScripting.workingDirectory != null)
+			patternPath = Paths.get(DragonDanceScripting.workingDirectory, pattern);
+		
+		dir = patternPath.getParent();
+		glob = patternPath.getFileName().toString();
+		
+		if (dir == null)
+			dir = Paths.get(System.getProperty("user.dir"));
+		
+		try {
+			return CoverageAggregator.listCoverageFiles(dir, glob);
+		} catch (IOException e) {
+			throw new DragonDanceScriptRuntimeException(String.format("\"%s\" could not be listed (%s)", dir, e.getMessage()));
+		}
+	}
+	
+	@Override
+	public CoverageData execute() {
+		String[] finalArgs = getStringArguments();
+		Session session = SessionManager.getActiveSession();
+		CoverageAggregator aggregator;
+		List<String> files;
+		CoverageData coverage;
+		
+		if (session == null)
+			throw new DragonDanceScriptRuntimeException("there is no active session");
+		
+		files = findFiles(finalArgs[0]);
+		
+		if (files.isEmpty())
+			throw new DragonDanceScriptRuntimeException(String.format("no coverage file matches \"%s\"", finalArgs[0]));
+		
+		aggregator = new CoverageAggregator(session, CoverageAggregator.OP_SUM, Globals.MaxConcurrentImports);
+		
+		try {
+			coverage = aggregator.aggregate(files);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DragonDanceScriptRuntimeException("loaddir interrupted");
+		}
+		
+		if (coverage == null)
+			throw new DragonDanceScriptRuntimeException(String.format("none of the files matching \"%s\" could be loaded", finalArgs[0]));
+		
+		setReturn(coverage);
+		
+		return super.execute();
+	}
+}